@@ -25,18 +25,37 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 /**
  * A macro argument.
  * <p>
- * This encapsulates a raw and preprocessed token stream.
+ * This encapsulates a raw and preprocessed token stream. The raw tokens
+ * are a view of the tokens collected for all arguments of an invocation.
+ * The preprocessed tokens are only computed once the argument is used.
  */
-class Argument extends ArrayList<Token> {
+class Argument extends AbstractList<Token> implements RandomAccess {
 
+	private final List<Token> tokens;
+	private final int start;
+	private final int end;
 	private List<Token> expansion;
 
-	public Argument() {
+	Argument(@NonNull List<Token> tokens, int start, int end) {
+		this.tokens = tokens;
+		this.start = start;
+		this.end = end;
 		this.expansion = null;
 	}
 
-	public void addToken(@NonNull Token tok) {
-		add(tok);
+	@Override
+	public Token get(int index) {
+		Objects.checkIndex(index, end - start);
+		return tokens.get(start + index);
+	}
+
+	@Override
+	public int size() {
+		return end - start;
+	}
+
+	boolean isExpanded() {
+		return expansion != null;
 	}
 
 	void expand(@NonNull Preprocessor p) {
@@ -48,8 +67,8 @@ class Argument extends ArrayList<Token> {
 	}
 
 	@NonNull
-	public Iterator<Token> expansion() {
-		return expansion.iterator();
+	List<Token> getExpansion() {
+		return expansion;
 	}
 
 	@Override
@@ -0,0 +1,94 @@
+package io.github.douira.glsl_preprocessor;
+
+import java.util.Arrays;
+
+/**
+ * The conditional blocks a Preprocessor is nested in.
+ *
+ * Each level is a byte of flags, so entering and leaving blocks doesn't
+ * allocate. The bottom level stands for the input outside of any block
+ * and is always active.
+ */
+final class ConditionalStack {
+	/* Set if the enclosing block is active and no earlier branch was taken. */
+	private static final int PARENT_ACTIVE = 1;
+	private static final int ACTIVE = 2;
+	private static final int SAW_ELSE = 4;
+	private static final int ENABLED = PARENT_ACTIVE | ACTIVE;
+
+	private byte[] levels = new byte[16];
+	private int top = 0;
+
+	ConditionalStack() {
+		levels[0] = ENABLED;
+	}
+
+	/**
+	 * Enters a block, which is active until told otherwise.
+	 */
+	void push() {
+		int parent = isEnabled() ? PARENT_ACTIVE : 0;
+		if (++top == levels.length)
+			levels = Arrays.copyOf(levels, top * 2);
+		levels[top] = (byte) (parent | ACTIVE);
+	}
+
+	/**
+	 * Leaves the innermost block.
+	 *
+	 * @return false if there was no block to leave.
+	 */
+	boolean pop() {
+		if (top == 0)
+			return false;
+		top--;
+		return true;
+	}
+
+	private void set(int flag, boolean b) {
+		if (b)
+			levels[top] |= flag;
+		else
+			levels[top] &= ~flag;
+	}
+
+	/* Required for #elif */
+	void setParentActive(boolean b) {
+		set(PARENT_ACTIVE, b);
+	}
+
+	boolean isParentActive() {
+		return (levels[top] & PARENT_ACTIVE) != 0;
+	}
+
+	void setActive(boolean b) {
+		set(ACTIVE, b);
+	}
+
+	boolean isActive() {
+		return (levels[top] & ACTIVE) != 0;
+	}
+
+	/**
+	 * Returns true if the innermost block and all blocks around it are active.
+	 */
+	boolean isEnabled() {
+		return (levels[top] & ENABLED) == ENABLED;
+	}
+
+	void setSawElse() {
+		set(SAW_ELSE, true);
+	}
+
+	boolean sawElse() {
+		return (levels[top] & SAW_ELSE) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return "depth=" + top
+				+ ", parent=" + isParentActive()
+				+ ", active=" + isActive()
+				+ ", sawelse=" + sawElse();
+	}
+}
@@ -63,4 +63,7 @@ public enum Feature {
 	ARBITRARY_PRAGMAS,
 	/** #custom directive, which is passed through */
 	CUSTOM_DIRECTIVE,
+
+	/** Records the names of the macros the output depends on, see {@link Preprocessor#getMacroDependencies()} */
+	MACRO_DEPENDENCIES,
 }
@@ -0,0 +1,132 @@
+package io.github.douira.glsl_preprocessor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.github.douira.glsl_preprocessor.fs.VirtualFile;
+
+/**
+ * A cache of lexed include files.
+ *
+ * Shaders usually include the same few library files many times over,
+ * and lexing them again for every inclusion is a large part of the
+ * preprocessing time. Files which provide their content through
+ * {@link VirtualFile#getContent()} are lexed once and then replayed from
+ * this cache. Entries are keyed by the content and the lexer relevant
+ * settings of the Preprocessor, so a cache may be shared by any number of
+ * Preprocessors, also on different threads.
+ *
+ * Files for which the lexer reports warnings or errors are not cached
+ * so that those are still reported wherever the file is included.
+ *
+ * The cache is bounded by the total number of tokens it holds and
+ * evicts the least recently used files first.
+ *
+ * @see Preprocessor#setIncludeCache(IncludeCache)
+ */
+public class IncludeCache {
+	public static final int DEFAULT_MAX_TOKENS = 1 << 20;
+
+	private record Key(String content, boolean digraphs, boolean trigraphs, boolean trigraphWarnings) {
+	}
+
+	private final int maxTokens;
+	private final Map<Key, TokenizedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+	private int tokens = 0;
+
+	public IncludeCache() {
+		this(DEFAULT_MAX_TOKENS);
+	}
+
+	/**
+	 * Creates a new IncludeCache.
+	 *
+	 * @param maxTokens The maximum total number of tokens held by the cache.
+	 */
+	public IncludeCache(int maxTokens) {
+		if (maxTokens < 0)
+			throw new IllegalArgumentException("Negative maximum token count: " + maxTokens);
+		this.maxTokens = maxTokens;
+	}
+
+	/**
+	 * Returns a Source for reading the given file, which replays
+	 * cached tokens if possible.
+	 */
+	@NonNull
+	Source getSource(@NonNull Preprocessor pp, @NonNull VirtualFile file) {
+		String content = file.getContent();
+		if (content == null)
+			return file.getSource();
+		Key key = new Key(content,
+				pp.getFeature(Feature.DIGRAPHS),
+				pp.getFeature(Feature.TRIGRAPHS),
+				pp.getWarning(Warning.TRIGRAPHS));
+
+		TokenizedFile tokenized = get(key);
+		if (tokenized == null) {
+			/* Lexing happens outside the lock, racing threads just do it twice. */
+			Source source = file.getSource();
+			if (!(source instanceof LexerSource plain))
+				return source;
+			try (Source include = file.getSource()) {
+				if (!(include instanceof LexerSource))
+					return source;
+				try (plain) {
+					tokenized = TokenizedFile.tokenize(pp, plain, (LexerSource) include);
+				}
+			}
+			put(key, tokenized == null ? TokenizedFile.UNCACHEABLE : tokenized);
+			if (tokenized == null)
+				return file.getSource();
+		} else if (tokenized == TokenizedFile.UNCACHEABLE) {
+			return file.getSource();
+		}
+		return new TokenizedFileSource(tokenized, file.getName());
+	}
+
+	private synchronized TokenizedFile get(@NonNull Key key) {
+		return files.get(key);
+	}
+
+	private synchronized void put(@NonNull Key key, @NonNull TokenizedFile tokenized) {
+		TokenizedFile previous = files.put(key, tokenized);
+		if (previous != null)
+			tokens -= weight(previous);
+		tokens += weight(tokenized);
+		Iterator<TokenizedFile> it = files.values().iterator();
+		while (tokens > maxTokens && it.hasNext()) {
+			tokens -= weight(it.next());
+			it.remove();
+		}
+	}
+
+	private static int weight(@NonNull TokenizedFile tokenized) {
+		/* Uncacheable markers still take up an entry. */
+		return Math.max(tokenized.weight(), 1);
+	}
+
+	/**
+	 * Returns the number of files in this cache.
+	 */
+	public synchronized int size() {
+		return files.size();
+	}
+
+	/**
+	 * Returns the total number of tokens held by this cache.
+	 */
+	public synchronized int getTokenCount() {
+		return tokens;
+	}
+
+	/**
+	 * Removes all files from this cache.
+	 */
+	public synchronized void clear() {
+		files.clear();
+		tokens = 0;
+	}
+}
@@ -26,18 +26,24 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 /**
  * A {@link Source} which lexes an {@link InputStream}.
  *
- * The input is buffered.
+ * The input is buffered. Streams are read completely when the Source is
+ * created, and lexed from memory like a {@link StringLexerSource}.
  *
  * @see Source
  */
 public class InputLexerSource extends LexerSource {
 	/**
-	 * Creates a new Source for lexing the given Reader.
+	 * Creates a new Source for lexing the given InputStream.
 	 *
-	 * Preprocessor directives are honoured within the file.
+	 * The stream is read up to its end and closed by this constructor, so
+	 * it blocks until then. For an interactive stream like System.in that
+	 * means no token is produced before the end of input. Preprocessor
+	 * directives are honoured within the file.
+	 *
+	 * @throws UncheckedIOException if reading or closing the stream fails.
 	 */
 	public InputLexerSource(@NonNull InputStream input, Charset charset) {
-		this(new InputStreamReader(input, charset));
+		super(read(input, charset), true);
 	}
 
 	public InputLexerSource(@NonNull Reader input, boolean ppvalid) {
@@ -48,6 +54,20 @@ public class InputLexerSource extends LexerSource {
 		this(input, true);
 	}
 
+	/*
+	 * Decoding ASCII, which almost all shaders are, only checks the bytes
+	 * and keeps them as a compact Latin-1 String. Malformed input is
+	 * replaced like an InputStreamReader does.
+	 */
+	@NonNull
+	private static String read(@NonNull InputStream input, Charset charset) {
+		try (input) {
+			return new String(input.readAllBytes(), charset);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	@Override
 	public String getPath() {
 		return "<standard-input>";
@@ -177,6 +177,98 @@ class JoinReader /* extends Reader */ implements Closeable {
 		}
 	}
 
+	/**
+	 * Joins a whole string at once, returning exactly the characters that
+	 * {@link #read()} would return for it. This is used by lexers which
+	 * read from memory instead of going through a JoinReader.
+	 *
+	 * Trigraph warnings are not supported.
+	 *
+	 * @return the given string itself if there is nothing to join.
+	 */
+	static String join(String in, boolean trigraphs) {
+		int len = in.length();
+		if (in.indexOf('\\') == -1 && !(trigraphs && in.contains("??")))
+			return in;
+
+		char[] src = in.toCharArray();
+		if (trigraphs) {
+			int n = 0;
+			for (int i = 0; i < len; i++) {
+				char c = src[i];
+				if (c == '?' && i + 2 < len && src[i + 1] == '?') {
+					char repl = switch (src[i + 2]) {
+						case '(' -> '[';
+						case ')' -> ']';
+						case '<' -> '{';
+						case '>' -> '}';
+						case '=' -> '#';
+						case '/' -> '\\';
+						case '\'' -> '^';
+						case '!' -> '|';
+						case '-' -> '~';
+						default -> 0;
+					};
+					if (repl != 0) {
+						c = repl;
+						i += 2;
+					}
+				}
+				src[n++] = c;
+			}
+			len = n;
+		}
+
+		char[] out = new char[len];
+		int n = 0;
+		int newlines = 0;
+		for (int i = 0; i < len; i++) {
+			char c = src[i];
+			switch (c) {
+				case '\\':
+					if (i + 1 < len) {
+						char d = src[i + 1];
+						if (d == '\n') {
+							newlines++;
+							i++;
+							continue;
+						}
+						if (d == '\r') {
+							newlines++;
+							i++;
+							if (i + 1 < len && src[i + 1] == '\n')
+								i++;
+							continue;
+						}
+					}
+					out[n++] = c;
+					break;
+				case '\r':
+				case '\n':
+				case '\u2028':
+				case '\u2029':
+				case '\u000B':
+				case '\u000C':
+				case '\u0085':
+					/* Newlines removed by splices are emitted after the next line separator. */
+					out[n++] = c;
+					while (newlines > 0) {
+						out[n++] = '\n';
+						newlines--;
+					}
+					break;
+				default:
+					out[n++] = c;
+					break;
+			}
+		}
+		while (newlines > 0) {
+			out[n++] = '\n';
+			newlines--;
+		}
+		return new String(out, 0, n);
+	}
+
 	public int read(char[] cbuf, int off, int len) {
 		for (int i = 0; i < len; i++) {
 			int ch = read();
@@ -23,6 +23,7 @@ import static io.github.douira.glsl_preprocessor.Token.*;
 import java.io.*;
 import java.util.Arrays;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 /** Does not handle digraphs. */
@@ -38,6 +39,17 @@ public class LexerSource extends Source {
 	private static final boolean DEBUG = false;
 
 	private JoinReader reader;
+
+	/*
+	 * In-memory input, which is read directly instead of through a
+	 * JoinReader. The joined input is a String too, so ASCII input
+	 * takes up one byte per character.
+	 */
+	private String text;
+	private String input;
+	private int pos;
+	private boolean trigraphs;
+
 	private final boolean ppvalid;
 	private boolean bol;
 	private boolean include;
@@ -48,10 +60,30 @@ public class LexerSource extends Source {
 	private int u0, u1;
 	private int ucount;
 
+	/*
+	 * The position in a Reader. In-memory input only moves pos, and
+	 * positions are computed from it by the LineMap when needed.
+	 */
 	private int line;
 	private int column;
 	private int lastcolumn;
 	private boolean cr;
+	private LineMap lines;
+
+	/* Set once it is known whether the buffer can be scanned in bulk. */
+	private boolean scanned;
+	private TextScanner scanner;
+
+	/* The position of the token being lexed. */
+	private int tokenLine;
+	private int tokenColumn;
+
+	/* Reused by skipInactive() and whitespace(). */
+	private final StringBuilder skipped = new StringBuilder();
+	private final StringBuilder whitespace = new StringBuilder();
+
+	/* Reused by identifier(), which interns its contents. */
+	private char[] identifier = new char[64];
 
 	/*
 	 * ppvalid is:
@@ -59,7 +91,22 @@ public class LexerSource extends Source {
 	 * true in FileLexerSource
 	 */
 	public LexerSource(Reader r, boolean ppvalid) {
+		this(ppvalid);
 		this.reader = new JoinReader(r);
+	}
+
+	/**
+	 * Creates a LexerSource which lexes the given string directly
+	 * from memory. Line splices and trigraphs are handled in one pass
+	 * over the whole string instead of character by character.
+	 */
+	public LexerSource(@NonNull String text, boolean ppvalid) {
+		this(ppvalid);
+		this.text = text;
+		this.input = JoinReader.join(text, false);
+	}
+
+	private LexerSource(boolean ppvalid) {
 		this.ppvalid = ppvalid;
 		this.bol = true;
 		this.include = false;
@@ -78,7 +125,24 @@ public class LexerSource extends Source {
 	void init(Preprocessor pp) {
 		super.init(pp);
 		this.digraphs = pp.getFeature(Feature.DIGRAPHS);
-		this.reader.init(pp, this);
+		if (text != null && pos == 0 && ucount == 0)
+			initBuffer(pp.getFeature(Feature.TRIGRAPHS), pp.getWarning(Warning.TRIGRAPHS));
+		if (reader != null)
+			this.reader.init(pp, this);
+	}
+
+	private void initBuffer(boolean trigraphs, boolean warnings) {
+		if (warnings) {
+			/* Warnings need the position of each trigraph. */
+			this.input = null;
+			this.reader = new JoinReader(new StringReader(text));
+		} else if (input == null || trigraphs != this.trigraphs) {
+			this.input = JoinReader.join(text, trigraphs);
+			this.reader = null;
+			this.lines = null;
+			this.scanned = false;
+		}
+		this.trigraphs = trigraphs;
 	}
 
 	/**
@@ -90,7 +154,7 @@ public class LexerSource extends Source {
 	 */
 	@Override
 	public int getLine() {
-		return line;
+		return input != null ? lines().line(pos) : line;
 	}
 
 	/**
@@ -102,7 +166,36 @@ public class LexerSource extends Source {
 	 */
 	@Override
 	public int getColumn() {
-		return column;
+		return input != null ? lines().column(pos) : column;
+	}
+
+	/* Looks up the line and column of the next token at once. */
+	private void markToken() {
+		if (input != null) {
+			LineMap lines = lines();
+			lines.seek(pos);
+			tokenLine = lines.line();
+			tokenColumn = lines.column();
+		} else {
+			tokenLine = line;
+			tokenColumn = column;
+		}
+	}
+
+	@NonNull
+	private LineMap lines() {
+		if (lines == null)
+			lines = new LineMap(input, scanner());
+		return lines;
+	}
+
+	@CheckForNull
+	private TextScanner scanner() {
+		if (!scanned) {
+			scanned = true;
+			scanner = input != null ? TextScanner.of(input) : null;
+		}
+		return scanner;
 	}
 
 	@Override
@@ -114,7 +207,12 @@ public class LexerSource extends Source {
 	private void _error(String msg, boolean error) {
 		int _l = line;
 		int _c = column;
-		if (_c == 0) {
+		if (input != null) {
+			LineMap lines = lines();
+			lines.seek(pos - 1);
+			_l = lines.line();
+			_c = lines.column();
+		} else if (_c == 0) {
 			_c = lastcolumn;
 			_l--;
 		} else {
@@ -138,6 +236,7 @@ public class LexerSource extends Source {
 
 	/* A flag for string handling. */
 
+	@Override
 	void setInclude(boolean b) {
 		this.include = b;
 	}
@@ -158,6 +257,8 @@ public class LexerSource extends Source {
 	}
 
 	private int read() {
+		if (input != null)
+			return pos < input.length() ? input.charAt(pos++) : -1;
 		int c;
 		assert ucount <= 2 : "Illegal ucount: " + ucount;
 		switch (ucount) {
@@ -170,10 +271,7 @@ public class LexerSource extends Source {
 				c = u0;
 				break;
 			default:
-				if (reader == null)
-					c = -1;
-				else
-					c = reader.read();
+				c = reader == null ? -1 : reader.read();
 				break;
 		}
 
@@ -224,6 +322,12 @@ public class LexerSource extends Source {
 
 	/* You can unget AT MOST one newline. */
 	private void unread(int c) {
+		/* Characters are always unread in reverse order of reading them. */
+		if (input != null) {
+			if (c != -1)
+				pos--;
+			return;
+		}
 		/* XXX Must unread newlines. */
 		if (c != -1) {
 			if (isLineSeparator(c)) {
@@ -252,29 +356,47 @@ public class LexerSource extends Source {
 
 	@NonNull
 	private Token ccomment() {
+		TextScanner scanner = scanner();
+		if (scanner != null) {
+			int start = pos - 2;
+			int end = scanner.commentEnd(pos);
+			if (end == -1) {
+				pos = input.length();
+				return newToken(INVALID, scanner.substring(start, pos),
+						"Unterminated comment");
+			}
+			pos = end + 2;
+			return newToken(CCOMMENT, scanner.substring(start, pos));
+		}
 		StringBuilder text = new StringBuilder("/*");
 		int d;
 		do {
 			do {
 				d = read();
 				if (d == -1)
-					return new Token(INVALID, text.toString(),
+					return newToken(INVALID, text.toString(),
 							"Unterminated comment");
 				text.append((char) d);
 			} while (d != '*');
 			do {
 				d = read();
 				if (d == -1)
-					return new Token(INVALID, text.toString(),
+					return newToken(INVALID, text.toString(),
 							"Unterminated comment");
 				text.append((char) d);
 			} while (d == '*');
 		} while (d != '/');
-		return new Token(CCOMMENT, text.toString());
+		return newToken(CCOMMENT, text.toString());
 	}
 
 	@NonNull
 	private Token cppcomment() {
+		TextScanner scanner = scanner();
+		if (scanner != null) {
+			int start = pos - 2;
+			pos = scanner.lineEnd(pos);
+			return newToken(CPPCOMMENT, scanner.substring(start, pos));
+		}
 		StringBuilder text = new StringBuilder("//");
 		int d = read();
 		while (!isLineSeparator(d)) {
@@ -282,7 +404,7 @@ public class LexerSource extends Source {
 			d = read();
 		}
 		unread(d);
-		return new Token(CPPCOMMENT, text.toString());
+		return newToken(CPPCOMMENT, text.toString());
 	}
 
 	/**
@@ -388,12 +510,12 @@ public class LexerSource extends Source {
 			} else if (c == -1) {
 				unread(c);
 				// error("End of file in string literal after " + buf);
-				return new Token(INVALID, text.toString(),
+				return newToken(INVALID, text.toString(),
 						"End of file in string literal after " + buf);
 			} else if (isLineSeparator(c)) {
 				unread(c);
 				// error("Unterminated string literal after " + buf);
-				return new Token(INVALID, text.toString(),
+				return newToken(INVALID, text.toString(),
 						"Unterminated string literal after " + buf);
 			} else {
 				text.append((char) c);
@@ -402,15 +524,15 @@ public class LexerSource extends Source {
 		}
 		text.append(close);
 		return switch (close) {
-			case '"' -> new Token(STRING,
+			case '"' -> newToken(STRING,
 					text.toString(), buf.toString());
-			case '>' -> new Token(HEADER,
+			case '>' -> newToken(HEADER,
 					text.toString(), buf.toString());
 			case '\'' -> {
 				if (buf.length() == 1)
-					yield new Token(CHARACTER,
+					yield newToken(CHARACTER,
 							text.toString(), buf.toString());
-				yield new Token(SQSTRING,
+				yield newToken(SQSTRING,
 						text.toString(), buf.toString());
 			}
 			default -> throw new IllegalStateException(
@@ -468,11 +590,11 @@ public class LexerSource extends Source {
 					d = read();
 				}
 				unread(d);
-				return new Token(INVALID, text.toString(), reason);
+				return newToken(INVALID, text.toString(), reason);
 			} else {
 				unread(d);
 				value.setFlags(flags);
-				return new Token(NUMBER,
+				return newToken(NUMBER,
 						text.toString(), value);
 			}
 		}
@@ -615,7 +737,7 @@ public class LexerSource extends Source {
 				unread(c);
 				tok = number_decimal();
 			}
-		} else if (Character.isDigit(c) || c == '.') {
+		} else if (LexerTable.isDigit(c) || c == '.') {
 			unread(c);
 			tok = number_decimal();
 		} else {
@@ -626,56 +748,314 @@ public class LexerSource extends Source {
 
 	@NonNull
 	private Token identifier(int c) {
-		StringBuilder text = new StringBuilder();
+		if (input != null) {
+			/* ASCII identifiers are interned straight from the buffer. */
+			int start = pos - 1;
+			int end = pos;
+			int length = input.length();
+			while (end < length && LexerTable.isAsciiIdentifierPart(input.charAt(end)))
+				end++;
+			if (end == length || !LexerTable.isIdentifierPart(input.charAt(end))) {
+				pos = end;
+				return new Token(SymbolTable.intern(input, start, end - start), tokenLine, tokenColumn);
+			}
+		}
+		char[] text = this.identifier;
+		int len = 0;
 		int d;
-		text.append((char) c);
+		text[len++] = (char) c;
 		while (true) {
 			d = read();
-			if (Character.isIdentifierIgnorable(d))
+			if (LexerTable.isIdentifierIgnorable(d))
 				;
-			else if (Character.isJavaIdentifierPart(d))
-				text.append((char) d);
-			else
+			else if (LexerTable.isIdentifierPart(d)) {
+				if (len == text.length)
+					this.identifier = text = Arrays.copyOf(text, len * 2);
+				text[len++] = (char) d;
+			} else
 				break;
 		}
 		unread(d);
-		return new Token(IDENTIFIER, text.toString());
+		return new Token(SymbolTable.intern(text, 0, len), tokenLine, tokenColumn);
 	}
 
+	/* Runs of only spaces or only tabs use the shared strings. */
 	@NonNull
 	private Token whitespace(int c) {
-		StringBuilder text = new StringBuilder();
+		StringBuilder text = whitespace;
+		text.setLength(0);
+		boolean spaces = c == ' ';
+		boolean tabs = c == '\t';
 		int d;
 		text.append((char) c);
 		while (true) {
 			d = read();
 			if (ppvalid && isLineSeparator(d)) /* XXX Ugly. */
 				break;
-			if (Character.isWhitespace(d))
+			if (LexerTable.isWhitespace(d)) {
 				text.append((char) d);
-			else
+				spaces &= d == ' ';
+				tabs &= d == '\t';
+			} else
 				break;
 		}
 		unread(d);
-		return new Token(WHITESPACE, text.toString());
+		String white;
+		if (spaces)
+			white = Preprocessor.spaces(text.length());
+		else if (tabs)
+			white = Preprocessor.tabs(text.length());
+		else
+			white = text.toString();
+		return newToken(WHITESPACE, white);
 	}
 
-	/* No token processed by cond() contains a newline. */
-	@NonNull
-	private Token cond(char c, int yes, int no) {
+	/*
+	 * Lexes the longest punctuator starting with c using the DFA. Returns
+	 * null if it is only c, which is lexed like any other character.
+	 */
+	@CheckForNull
+	private Token punctuator(int c) {
+		int state = LexerTable.next(0, c, digraphs);
+		if (state == 0)
+			return null;
+		int accepted = state;
+		while (true) {
+			int d = read();
+			int next = LexerTable.next(state, d, digraphs);
+			if (next == 0) {
+				unread(d);
+				break;
+			}
+			state = next;
+			if (LexerTable.accept(state) != -1)
+				accepted = state;
+		}
+		/* Only a "%:%" which isn't followed by ':' is read past its punctuator. */
+		String text = LexerTable.text(state);
+		int length = LexerTable.text(accepted).length();
+		for (int i = text.length() - 1; i >= length; i--)
+			unread(text.charAt(i));
+		if (length == 1)
+			return null;
+		return newToken(LexerTable.accept(accepted));
+	}
+
+	/*
+	 * This must produce exactly what the Preprocessor outputs for the
+	 * tokens of an inactive block: whitespace tokens are kept, comments
+	 * are replaced by their newlines and any other token causes the rest
+	 * of the line to be skipped, like Source.skipline(false) does.
+	 */
+	@Override
+	Token skipInactive() {
+		if (!ppvalid || include)
+			return null;
+		markToken();
+		int _l = tokenLine;
+		int _c = tokenColumn;
+		StringBuilder out = skipped;
+		out.setLength(0);
+		boolean white = false;
+		boolean consumed = false;
+
+		while (true) {
+			int c = read();
+			if (c == -1 || (c == '#' && bol)) {
+				unread(c);
+				break;
+			}
+			consumed = true;
+			if (c == '\n') {
+				out.append('\n');
+				bol = true;
+				continue;
+			}
+			if (c == '/') {
+				int d = read();
+				if (d == '*') {
+					int mark = out.length();
+					if (!skipComment(out)) {
+						/* Unterminated comments are invalid tokens. */
+						out.setLength(mark);
+						skipLine(-1, out);
+					}
+					continue;
+				}
+				if (d == '/') {
+					skipLineComment();
+					bol = false;
+					continue;
+				}
+				unread(d);
+			} else if (LexerTable.isWhitespace(c)) {
+				out.append((char) c);
+				white = true;
+				continue;
+			}
+			skipLine(c, out);
+		}
+
+		if (!consumed)
+			return null;
+		int type = white || out.length() == 0 ? WHITESPACE : NL;
+		return new Token(type, _l, _c, out.toString());
+	}
+
+	/**
+	 * Skips a C comment after the opening characters.
+	 *
+	 * @param out receives a newline for each line separator in the
+	 *            comment if not null, counted like Preprocessor.countNewlines().
+	 * @return false if the comment is unterminated.
+	 */
+	private boolean skipComment(StringBuilder out) {
+		TextScanner scanner = scanner();
+		if (scanner != null) {
+			int end = scanner.commentEnd(pos);
+			int stop = end == -1 ? input.length() : end + 2;
+			if (out != null)
+				for (int nls = scanner.countNewlines(pos, stop); nls > 0; nls--)
+					out.append('\n');
+			pos = stop;
+			return end != -1;
+		}
+		boolean cr = false;
 		int d = read();
-		if (c == d)
-			return new Token(yes);
+		while (true) {
+			switch (d) {
+				case -1:
+					return false;
+				case '*':
+					d = read();
+					if (d == '/')
+						return true;
+					continue;
+				case '\r':
+					cr = true;
+					if (out != null)
+						out.append('\n');
+					break;
+				case '\n':
+					if (cr) {
+						cr = false;
+						break;
+					}
+					/* fallthrough */
+				case '\u2028':
+				case '\u2029':
+				case '\u000B':
+				case '\u000C':
+				case '\u0085':
+					cr = false;
+					if (out != null)
+						out.append('\n');
+					break;
+			}
+			d = read();
+		}
+	}
+
+	/* Skips a C++ comment after the opening characters, up to the line separator. */
+	private void skipLineComment() {
+		TextScanner scanner = scanner();
+		if (scanner != null) {
+			pos = scanner.lineEnd(pos);
+			return;
+		}
+		int d;
+		do {
+			d = read();
+		} while (!isLineSeparator(d));
 		unread(d);
-		return new Token(no);
+	}
+
+	/* Skips a string or character literal after the opening quote. */
+	private void skipString(int close) {
+		while (true) {
+			int d = read();
+			if (d == close)
+				return;
+			if (d == '\\') {
+				/* The escape() catch-all consumes any character. */
+				d = read();
+				if (d == -1)
+					return;
+			} else if (isLineSeparator(d)) {
+				unread(d);
+				return;
+			}
+		}
+	}
+
+	/* Skips the rest of a line, starting with the given character. */
+	private void skipLine(int c, StringBuilder out) {
+		bol = false;
+		if (input != null && c != -1 && c != '\n' && c != '"' && c != '\'' && c != '/') {
+			/* Only strings and comments can hide the end of the line. */
+			int i = pos;
+			char d;
+			int length = input.length();
+			while (i < length && (d = input.charAt(i)) != '\n' && d != '"' && d != '\'' && d != '/')
+				i++;
+			pos = i;
+			c = read();
+		}
+		while (true) {
+			switch (c) {
+				case -1:
+					warning(getLine(), getColumn(), "No newline before end of file");
+					out.append('\n');
+					return;
+				case '\n':
+					out.append('\n');
+					bol = true;
+					return;
+				case '"':
+				case '\'':
+					skipString(c);
+					break;
+				case '/':
+					int d = read();
+					if (d == '*') {
+						if (!skipComment(null)) {
+							c = -1;
+							continue;
+						}
+					} else if (d == '/') {
+						skipLineComment();
+					} else {
+						unread(d);
+					}
+					break;
+			}
+			c = read();
+		}
+	}
+
+	/* Creates a token at the position of the token being lexed. */
+	@NonNull
+	private Token newToken(int type, String text, Object value) {
+		return new Token(type, tokenLine, tokenColumn, text, value);
+	}
+
+	@NonNull
+	private Token newToken(int type, String text) {
+		return newToken(type, text, null);
+	}
+
+	@NonNull
+	private Token newToken(int type) {
+		return newToken(type, TokenType.getTokenText(type), null);
 	}
 
 	@Override
 	public Token token() {
 		Token tok = null;
 
-		int _l = line;
-		int _c = column;
+		markToken();
+		int _l = tokenLine;
+		int _c = tokenColumn;
 
 		int c = read();
 		int d;
@@ -693,10 +1073,8 @@ public class LexerSource extends Source {
 							d = read();
 						} while (d == '\n');
 						unread(d);
-						char[] text = new char[nls];
-						Arrays.fill(text, '\n');
 						// Skip the bol = false below.
-						tok = new Token(NL, _l, _c, new String(text));
+						tok = new Token(NL, _l, _c, Preprocessor.newlines(nls));
 					}
 					if (DEBUG)
 						System.out.println("lx: Returning NL: " + tok);
@@ -705,151 +1083,30 @@ public class LexerSource extends Source {
 				/* Let it be handled as whitespace. */
 				break;
 
-			case '!':
-				tok = cond('=', NE, '!');
-				break;
-
 			case '#':
 				if (bol)
-					tok = new Token(HASH);
-				else
-					tok = cond('#', PASTE, '#');
-				break;
-
-			case '+':
-				d = read();
-				if (d == '+')
-					tok = new Token(INC);
-				else if (d == '=')
-					tok = new Token(PLUS_EQ);
-				else
-					unread(d);
-				break;
-			case '-':
-				d = read();
-				if (d == '-')
-					tok = new Token(DEC);
-				else if (d == '=')
-					tok = new Token(SUB_EQ);
-				else if (d == '>')
-					tok = new Token(ARROW);
-				else
-					unread(d);
+					tok = newToken(HASH);
 				break;
 
-			case '*':
-				tok = cond('=', MULT_EQ, '*');
-				break;
 			case '/':
 				d = read();
 				if (d == '*')
 					tok = ccomment();
 				else if (d == '/')
 					tok = cppcomment();
-				else if (d == '=')
-					tok = new Token(DIV_EQ);
-				else
-					unread(d);
-				break;
-
-			case '%':
-				d = read();
-				if (d == '=')
-					tok = new Token(MOD_EQ);
-				else if (digraphs && d == '>')
-					tok = new Token('}'); // digraph
-				else if (digraphs && d == ':')
-					PASTE: {
-						d = read();
-						if (d != '%') {
-							unread(d);
-							tok = new Token('#'); // digraph
-							break PASTE;
-						}
-						d = read();
-						if (d != ':') {
-							unread(d); // Unread 2 chars here.
-							unread('%');
-							tok = new Token('#'); // digraph
-							break PASTE;
-						}
-						tok = new Token(PASTE); // digraph
-					}
-				else
-					unread(d);
-				break;
-
-			case ':':
-				/* :: */
-				d = read();
-				if (digraphs && d == '>')
-					tok = new Token(']'); // digraph
 				else
 					unread(d);
 				break;
 
 			case '<':
-				if (include) {
+				if (include)
 					tok = string('<', '>');
-				} else {
-					d = read();
-					if (d == '=')
-						tok = new Token(LE);
-					else if (d == '<')
-						tok = cond('=', LSH_EQ, LSH);
-					else if (digraphs && d == ':')
-						tok = new Token('['); // digraph
-					else if (digraphs && d == '%')
-						tok = new Token('{'); // digraph
-					else
-						unread(d);
-				}
-				break;
-
-			case '=':
-				tok = cond('=', EQ, '=');
-				break;
-
-			case '>':
-				d = read();
-				if (d == '=')
-					tok = new Token(GE);
-				else if (d == '>')
-					tok = cond('=', RSH_EQ, RSH);
-				else
-					unread(d);
-				break;
-
-			case '^':
-				tok = cond('=', XOR_EQ, '^');
-				break;
-
-			case '|':
-				d = read();
-				if (d == '=')
-					tok = new Token(OR_EQ);
-				else if (d == '|')
-					tok = cond('=', LOR_EQ, LOR);
-				else
-					unread(d);
-				break;
-			case '&':
-				d = read();
-				if (d == '&')
-					tok = cond('=', LAND_EQ, LAND);
-				else if (d == '=')
-					tok = new Token(AND_EQ);
-				else
-					unread(d);
 				break;
 
 			case '.':
 				d = read();
-				if (d == '.')
-					tok = cond('.', ELLIPSIS, RANGE);
-				else
-					unread(d);
-				if (Character.isDigit(d)) {
+				unread(d);
+				if (LexerTable.isDigit(d)) {
 					unread('.');
 					tok = number();
 				}
@@ -870,13 +1127,15 @@ public class LexerSource extends Source {
 				break;
 		}
 
+		if (tok == null)
+			tok = punctuator(c);
 		if (tok == null) {
-			if (Character.isWhitespace(c)) {
+			if (LexerTable.isWhitespace(c)) {
 				tok = whitespace(c);
-			} else if (Character.isDigit(c)) {
+			} else if (LexerTable.isDigit(c)) {
 				unread(c);
 				tok = number();
-			} else if (Character.isJavaIdentifierStart(c)) {
+			} else if (LexerTable.isIdentifierStart(c)) {
 				tok = identifier(c);
 			} else {
 				String text = TokenType.getTokenText(c);
@@ -886,7 +1145,7 @@ public class LexerSource extends Source {
 					else
 						text = new String(Character.toChars(c));
 				}
-				tok = new Token(c, text);
+				tok = newToken(c, text);
 			}
 		}
 
@@ -901,7 +1160,6 @@ public class LexerSource extends Source {
 			}
 		}
 
-		tok.setLocation(_l, _c);
 		if (DEBUG)
 			System.out.println("lx: Returning " + tok);
 		// (new Exception("here")).printStackTrace(System.out);
@@ -910,10 +1168,19 @@ public class LexerSource extends Source {
 
 	@Override
 	public void close() {
+		if (input != null) {
+			/* Keeps the final position. */
+			LineMap lines = lines();
+			lines.seek(pos);
+			line = lines.line();
+			column = lines.column();
+		}
 		if (reader != null) {
 			reader.close();
 			reader = null;
 		}
+		text = null;
+		input = null;
 		super.close();
 	}
 }
@@ -0,0 +1,191 @@
+package io.github.douira.glsl_preprocessor;
+
+import static io.github.douira.glsl_preprocessor.Token.*;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The tables driving {@link LexerSource}: the classes of the ASCII
+ * characters, and a DFA recognizing the punctuators. Characters outside
+ * of ASCII fall back to the Unicode methods of {@link Character}.
+ */
+final class LexerTable {
+	private static final int SPACE = 1;
+	private static final int DIGIT = 2;
+	private static final int IDENTIFIER_START = 4;
+	private static final int IDENTIFIER_PART = 8;
+	private static final int IGNORABLE = 16;
+
+	private static final byte[] CLASSES = new byte[128];
+
+	static {
+		for (int c = 0; c < CLASSES.length; c++) {
+			int cls = 0;
+			if (Character.isWhitespace(c))
+				cls |= SPACE;
+			if (Character.isDigit(c))
+				cls |= DIGIT;
+			if (Character.isJavaIdentifierStart(c))
+				cls |= IDENTIFIER_START;
+			if (Character.isJavaIdentifierPart(c))
+				cls |= IDENTIFIER_PART;
+			if (Character.isIdentifierIgnorable(c))
+				cls |= IGNORABLE;
+			CLASSES[c] = (byte) cls;
+		}
+	}
+
+	private LexerTable() {
+	}
+
+	private static boolean isAscii(int c) {
+		return (c & ~0x7F) == 0;
+	}
+
+	static boolean isWhitespace(int c) {
+		return isAscii(c) ? (CLASSES[c] & SPACE) != 0 : Character.isWhitespace(c);
+	}
+
+	static boolean isDigit(int c) {
+		return isAscii(c) ? (CLASSES[c] & DIGIT) != 0 : Character.isDigit(c);
+	}
+
+	static boolean isIdentifierStart(int c) {
+		return isAscii(c) ? (CLASSES[c] & IDENTIFIER_START) != 0 : Character.isJavaIdentifierStart(c);
+	}
+
+	static boolean isIdentifierPart(int c) {
+		return isAscii(c) ? (CLASSES[c] & IDENTIFIER_PART) != 0 : Character.isJavaIdentifierPart(c);
+	}
+
+	static boolean isIdentifierIgnorable(int c) {
+		return isAscii(c) ? (CLASSES[c] & IGNORABLE) != 0 : Character.isIdentifierIgnorable(c);
+	}
+
+	/**
+	 * Returns true if c is part of an identifier and can't be ignored,
+	 * without looking at anything but ASCII. Other characters are for
+	 * {@link #isIdentifierPart(int)} and {@link #isIdentifierIgnorable(int)}.
+	 */
+	static boolean isAsciiIdentifierPart(int c) {
+		return isAscii(c) && (CLASSES[c] & (IDENTIFIER_PART | IGNORABLE)) == IDENTIFIER_PART;
+	}
+
+	/*
+	 * The punctuator DFA is a trie of the punctuator texts. State 0 is
+	 * the start state, and each state is reached by a single text.
+	 * Digraph states may only be entered if digraphs are enabled.
+	 */
+	private static final int MAX_STATES = 64;
+	private static final int[] TRANSITIONS = new int[MAX_STATES * 128];
+	private static final int[] ACCEPT = new int[MAX_STATES];
+	private static final String[] TEXTS = new String[MAX_STATES];
+	private static final boolean[] DIGRAPH = new boolean[MAX_STATES];
+
+	static {
+		TEXTS[0] = "";
+		int states = 1;
+		states = punctuator(states, "!", '!');
+		states = punctuator(states, "!=", NE);
+		states = punctuator(states, "#", '#');
+		states = punctuator(states, "##", PASTE);
+		states = punctuator(states, "+", '+');
+		states = punctuator(states, "++", INC);
+		states = punctuator(states, "+=", PLUS_EQ);
+		states = punctuator(states, "-", '-');
+		states = punctuator(states, "--", DEC);
+		states = punctuator(states, "-=", SUB_EQ);
+		states = punctuator(states, "->", ARROW);
+		states = punctuator(states, "*", '*');
+		states = punctuator(states, "*=", MULT_EQ);
+		states = punctuator(states, "/", '/');
+		states = punctuator(states, "/=", DIV_EQ);
+		states = punctuator(states, "%", '%');
+		states = punctuator(states, "%=", MOD_EQ);
+		states = punctuator(states, ":", ':');
+		states = punctuator(states, "<", '<');
+		states = punctuator(states, "<=", LE);
+		states = punctuator(states, "<<", LSH);
+		states = punctuator(states, "<<=", LSH_EQ);
+		states = punctuator(states, "=", '=');
+		states = punctuator(states, "==", EQ);
+		states = punctuator(states, ">", '>');
+		states = punctuator(states, ">=", GE);
+		states = punctuator(states, ">>", RSH);
+		states = punctuator(states, ">>=", RSH_EQ);
+		states = punctuator(states, "^", '^');
+		states = punctuator(states, "^=", XOR_EQ);
+		states = punctuator(states, "|", '|');
+		states = punctuator(states, "|=", OR_EQ);
+		states = punctuator(states, "||", LOR);
+		states = punctuator(states, "||=", LOR_EQ);
+		states = punctuator(states, "&", '&');
+		states = punctuator(states, "&=", AND_EQ);
+		states = punctuator(states, "&&", LAND);
+		states = punctuator(states, "&&=", LAND_EQ);
+		states = punctuator(states, ".", '.');
+		states = punctuator(states, "..", RANGE);
+		states = punctuator(states, "...", ELLIPSIS);
+
+		states = digraph(states, "%>", '}');
+		states = digraph(states, "%:", '#');
+		states = digraph(states, "%:%:", PASTE);
+		states = digraph(states, ":>", ']');
+		states = digraph(states, "<:", '[');
+		states = digraph(states, "<%", '{');
+	}
+
+	private static int punctuator(int states, @NonNull String text, int type) {
+		return add(states, text, type, false);
+	}
+
+	private static int digraph(int states, @NonNull String text, int type) {
+		return add(states, text, type, true);
+	}
+
+	/* Adds the states of the text after the given number of used states and returns the new number. */
+	private static int add(int states, @NonNull String text, int type, boolean isDigraph) {
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int index = state * 128 + text.charAt(i);
+			if (TRANSITIONS[index] == 0) {
+				if (states == MAX_STATES)
+					throw new IllegalStateException("Too many punctuator states");
+				ACCEPT[states] = -1;
+				TEXTS[states] = text.substring(0, i + 1);
+				DIGRAPH[states] = isDigraph;
+				TRANSITIONS[index] = states++;
+			}
+			state = TRANSITIONS[index];
+		}
+		ACCEPT[state] = type;
+		return states;
+	}
+
+	/**
+	 * Returns the state reached from the given state by reading c, or 0
+	 * if there is none.
+	 */
+	static int next(int state, int c, boolean digraphs) {
+		if (!isAscii(c))
+			return 0;
+		int next = TRANSITIONS[state * 128 + c];
+		return digraphs || !DIGRAPH[next] ? next : 0;
+	}
+
+	/**
+	 * Returns the type of the punctuator recognized in the given
+	 * state, or -1 if the state is only a prefix of punctuators.
+	 */
+	static int accept(int state) {
+		return ACCEPT[state];
+	}
+
+	/**
+	 * Returns the text read to reach the given state.
+	 */
+	@NonNull
+	static String text(int state) {
+		return TEXTS[state];
+	}
+}
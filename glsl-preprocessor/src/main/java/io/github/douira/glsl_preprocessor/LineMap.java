@@ -0,0 +1,142 @@
+package io.github.douira.glsl_preprocessor;
+
+import java.util.Arrays;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The offsets at which the lines of an input start, for computing the
+ * line and column of an offset on demand instead of counting them for
+ * every character that is read.
+ *
+ * The line starts are only searched for up to the largest offset looked
+ * up so far, so the map grows along with the lexer instead of scanning
+ * the whole input when the first token is read.
+ *
+ * Lines and columns are counted like {@link LexerSource} counts them
+ * while reading: CR LF is one line separator and its LF takes up no
+ * column.
+ */
+final class LineMap {
+	private final String input;
+	@CheckForNull
+	private final TextScanner scanner;
+	private int[] starts = new int[64];
+	private int count;
+	/* The offset up to which line starts have been searched for. */
+	private int scanned;
+	/* Positions are mostly looked up in order, so the last line is tried first. */
+	private int last;
+	/* The result of the last seek(). */
+	private int line;
+	private int column;
+
+	/**
+	 * Creates the map of the given input, whose line ends are found by
+	 * the scanner if one is given.
+	 */
+	LineMap(@NonNull String input, @CheckForNull TextScanner scanner) {
+		this.input = input;
+		this.scanner = scanner;
+		add(0);
+	}
+
+	private void add(int start) {
+		if (count == starts.length)
+			starts = Arrays.copyOf(starts, count * 2);
+		starts[count++] = start;
+	}
+
+	/* Finds line starts until one is after the offset or the input ends. */
+	private void extend(int offset) {
+		int length = input.length();
+		while (scanned < length && starts[count - 1] <= offset) {
+			if (scanner != null) {
+				int end = scanner.lineEnd(scanned);
+				scanned = end + 1;
+				if (end < length)
+					add(end + 1);
+				continue;
+			}
+			int i = scanned++;
+			switch (input.charAt(i)) {
+				case '\r':
+					if (i + 1 < length && input.charAt(i + 1) == '\n')
+						scanned++;
+					add(scanned);
+					break;
+				case '\n':
+				case '\u2028':
+				case '\u2029':
+				case '\u000B':
+				case '\u000C':
+				case '\u0085':
+					add(scanned);
+					break;
+			}
+		}
+	}
+
+	/*
+	 * The lexer only stops between CR and LF to unread the LF, which
+	 * puts it back at the position of the CR.
+	 */
+	private int normalize(int offset) {
+		if (offset > 0 && offset < input.length() && input.charAt(offset) == '\n' && input.charAt(offset - 1) == '\r')
+			return offset - 1;
+		return offset;
+	}
+
+	private int find(int offset) {
+		extend(offset);
+		int k = last;
+		if (starts[k] <= offset && (k + 1 == count || starts[k + 1] > offset))
+			return k;
+		k = Arrays.binarySearch(starts, 0, count, offset);
+		if (k < 0)
+			k = Math.max(-k - 2, 0);
+		last = k;
+		return k;
+	}
+
+	/**
+	 * Looks up the line and column of the given offset, which are then
+	 * returned by {@link #line()} and {@link #column()}.
+	 */
+	void seek(int offset) {
+		offset = normalize(offset);
+		int k = find(offset);
+		line = k + 1;
+		column = offset - starts[k];
+	}
+
+	/**
+	 * Returns the line of the offset of the last seek, numbered from 1.
+	 */
+	int line() {
+		return line;
+	}
+
+	/**
+	 * Returns the column of the offset of the last seek, numbered from 0.
+	 */
+	int column() {
+		return column;
+	}
+
+	/**
+	 * Returns the line of the given offset, numbered from 1.
+	 */
+	int line(int offset) {
+		return find(normalize(offset)) + 1;
+	}
+
+	/**
+	 * Returns the column of the given offset, numbered from 0.
+	 */
+	int column(int offset) {
+		offset = normalize(offset);
+		return offset - starts[find(offset)];
+	}
+}
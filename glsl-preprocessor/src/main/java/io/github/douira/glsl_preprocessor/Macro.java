@@ -26,38 +26,170 @@ import java.util.*;
  * This encapsulates a name, an argument count, and a token stream
  * for replacement. The replacement token stream may contain the
  * extra tokens {@link Token#M_ARG} and {@link Token#M_STRING}.
+ *
+ * Macros are immutable and are created with a {@link Builder}, so a
+ * single definition can be shared by any number of Preprocessors, also
+ * on different threads.
  */
-public class Macro {
+public final class Macro {
 
-	private Source source;
+	private final Source source;
 	private final String name;
+	private final Symbol symbol;
 	/*
 	 * It's an explicit decision to keep these around here. We don't
 	 * need to; the argument token type is M_ARG and the value
 	 * is the index. The strings themselves are only used in
 	 * stringification of the macro, for debugging.
 	 */
-	private List<String> args;
-	private boolean variadic;
-	private final List<Token> tokens;
+	private final List<String> args;
+	private final boolean variadic;
+
+	/* Instructions of the compiled expansion. */
+	static final int OP_LITERAL = 0;
+	static final int OP_ARG = 1;
+	static final int OP_STRINGIFY = 2;
+	static final int OP_PASTE = 3;
+	static final int OP_MASK = 0xff;
+	static final int OP_SHIFT = 8;
+
+	/*
+	 * The expansion is compiled to one instruction per token, with the
+	 * argument index above the opcode. The tokens themselves form the
+	 * pool of the instructions, which emit or stringify them.
+	 */
+	private final int[] code;
+	private final Token[] tokens;
 
+	/**
+	 * Creates an object-like macro with an empty expansion.
+	 */
 	public Macro(Source source, String name) {
-		this.source = source;
-		this.name = name;
-		this.args = null;
-		this.variadic = false;
-		this.tokens = new ArrayList<>();
+		this(source, name, null, false, new Token[0]);
 	}
 
+	/**
+	 * Creates an object-like macro with an empty expansion.
+	 */
 	public Macro(String name) {
 		this(null, name);
 	}
 
+	private Macro(Source source, String name, List<String> args, boolean variadic, Token[] tokens) {
+		this.source = source;
+		this.name = name;
+		this.symbol = SymbolTable.intern(name);
+		this.args = args;
+		this.variadic = variadic;
+		this.tokens = tokens;
+		this.code = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			Token tok = tokens[i];
+			code[i] = switch (tok.getType()) {
+				case Token.M_ARG -> OP_ARG | (Integer) tok.getValue() << OP_SHIFT;
+				case Token.M_STRING -> OP_STRINGIFY | (Integer) tok.getValue() << OP_SHIFT;
+				case Token.M_PASTE -> OP_PASTE;
+				default -> OP_LITERAL;
+			};
+		}
+	}
+
+	private Macro(Source source, Macro m) {
+		this.source = source;
+		this.name = m.name;
+		this.symbol = m.symbol;
+		this.args = m.args;
+		this.variadic = m.variadic;
+		this.tokens = m.tokens;
+		this.code = m.code;
+	}
+
 	/**
-	 * Sets the Source from which this macro was parsed.
+	 * Returns this macro as parsed from the given Source, sharing
+	 * the compiled expansion.
 	 */
-	public void setSource(Source s) {
-		this.source = s;
+	Macro withSource(Source source) {
+		return new Macro(source, this);
+	}
+
+	/**
+	 * Builds a Macro.
+	 */
+	public static final class Builder {
+		private Source source;
+		private final String name;
+		private List<String> args;
+		private boolean variadic;
+		private final List<Token> tokens = new ArrayList<>();
+
+		public Builder(Source source, String name) {
+			this.source = source;
+			this.name = name;
+		}
+
+		public Builder(String name) {
+			this(null, name);
+		}
+
+		/**
+		 * Sets the Source from which the macro was parsed.
+		 */
+		public Builder setSource(Source s) {
+			this.source = s;
+			return this;
+		}
+
+		/**
+		 * Sets the arguments to the macro, which makes it function-like.
+		 */
+		public Builder setArgs(List<String> args) {
+			this.args = args;
+			return this;
+		}
+
+		/**
+		 * Sets the variadic flag on the macro.
+		 */
+		public Builder setVariadic(boolean b) {
+			this.variadic = b;
+			return this;
+		}
+
+		/**
+		 * Adds a token to the expansion of the macro.
+		 */
+		public Builder addToken(Token tok) {
+			this.tokens.add(tok);
+			return this;
+		}
+
+		/**
+		 * Adds a "paste" operator to the expansion of the macro.
+		 *
+		 * A paste operator causes the next token added to be pasted
+		 * to the previous token when the macro is expanded.
+		 * It is an error for a macro to end with a paste token.
+		 */
+		public Builder addPaste(Token tok) {
+			/*
+			 * Given: tok0 ## tok1
+			 * We generate: M_PASTE, tok0, tok1
+			 * This extends as per a stack language:
+			 * tok0 ## tok1 ## tok2 ->
+			 * M_PASTE, tok0, M_PASTE, tok1, tok2
+			 */
+			this.tokens.add(tokens.size() - 1, tok);
+			return this;
+		}
+
+		/**
+		 * Returns the immutable Macro. The builder may be reused afterwards.
+		 */
+		public Macro build() {
+			return new Macro(source, name,
+					args == null ? null : List.copyOf(args),
+					variadic, tokens.toArray(new Token[0]));
+		}
 	}
 
 	/**
@@ -77,11 +209,8 @@ public class Macro {
 		return name;
 	}
 
-	/**
-	 * Sets the arguments to this macro.
-	 */
-	public void setArgs(List<String> args) {
-		this.args = args;
+	Symbol getSymbol() {
+		return symbol;
 	}
 
 	/**
@@ -98,13 +227,6 @@ public class Macro {
 		return args.size();
 	}
 
-	/**
-	 * Sets the variadic flag on this Macro.
-	 */
-	public void setVariadic(boolean b) {
-		this.variadic = b;
-	}
-
 	/**
 	 * Returns true if this is a variadic function-like macro.
 	 */
@@ -112,32 +234,11 @@ public class Macro {
 		return variadic;
 	}
 
-	/**
-	 * Adds a token to the expansion of this macro.
-	 */
-	public void addToken(Token tok) {
-		this.tokens.add(tok);
-	}
-
-	/**
-	 * Adds a "paste" operator to the expansion of this macro.
-	 *
-	 * A paste operator causes the next token added to be pasted
-	 * to the previous token when the macro is expanded.
-	 * It is an error for a macro to end with a paste token.
-	 */
-	public void addPaste(Token tok) {
-		/*
-		 * Given: tok0 ## tok1
-		 * We generate: M_PASTE, tok0, tok1
-		 * This extends as per a stack language:
-		 * tok0 ## tok1 ## tok2 ->
-		 * M_PASTE, tok0, M_PASTE, tok1, tok2
-		 */
-		this.tokens.add(tokens.size() - 1, tok);
+	int[] getCode() {
+		return code;
 	}
 
-	List<Token> getTokens() {
+	Token[] getTokens() {
 		return tokens;
 	}
 
@@ -182,7 +283,7 @@ public class Macro {
 			}
 			buf.append(')');
 		}
-		if (!tokens.isEmpty()) {
+		if (tokens.length > 0) {
 			buf.append(" => ").append(getText());
 		}
 		return buf.toString();
@@ -0,0 +1,54 @@
+package io.github.douira.glsl_preprocessor;
+
+import java.util.*;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * An immutable snapshot of the macro environment of a Preprocessor: its
+ * macros, the files included with <code>#pragma once</code> and the value
+ * of <code>__COUNTER__</code>.
+ *
+ * A prelude of common definitions and headers can be preprocessed once
+ * and any number of Preprocessors can then be started from the snapshot
+ * in constant time, also on different threads. The macros are shared
+ * copy-on-write, so definitions made by those Preprocessors never
+ * affect the snapshot or each other.
+ *
+ * @see Preprocessor#snapshot()
+ * @see Preprocessor#Preprocessor(MacroSnapshot)
+ */
+public final class MacroSnapshot {
+	private final MacroTable macros;
+	private final Set<String> onceSeenPaths;
+	private final int counter;
+
+	MacroSnapshot(@NonNull MacroTable macros, @NonNull Set<String> onceSeenPaths, int counter) {
+		this.macros = macros;
+		this.onceSeenPaths = Collections.unmodifiableSet(new HashSet<>(onceSeenPaths));
+		this.counter = counter;
+	}
+
+	/* Returns a table for a new Preprocessor which shares the snapshot's macros. */
+	@NonNull
+	MacroTable copyMacros() {
+		return macros.copy();
+	}
+
+	@NonNull
+	Set<String> getOnceSeenPaths() {
+		return onceSeenPaths;
+	}
+
+	int getCounter() {
+		return counter;
+	}
+
+	/**
+	 * Returns the macros in this snapshot.
+	 */
+	@NonNull
+	public Map<String, Macro> getMacros() {
+		return Collections.unmodifiableMap(macros.asMap());
+	}
+}
@@ -0,0 +1,178 @@
+package io.github.douira.glsl_preprocessor;
+
+import java.util.*;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The macros defined in a Preprocessor, keyed by {@link Symbol}.
+ *
+ * Looking up the macro for an identifier token doesn't hash its text, and
+ * the table only grows with the number of macros.
+ */
+final class MacroTable {
+	private SymbolMap<Macro> macros = new SymbolMap<>();
+	/* Set if the map is shared with another table and must be copied before writing to it. */
+	private boolean shared = false;
+
+	MacroTable() {
+	}
+
+	private MacroTable(@NonNull MacroTable table) {
+		this.macros = table.macros;
+		this.shared = true;
+	}
+
+	/**
+	 * Returns a copy of this table in constant time. Both tables share
+	 * their contents until one of them is modified.
+	 */
+	@NonNull
+	MacroTable copy() {
+		/* Snapshots are copied from many threads, which must only read them. */
+		if (!shared)
+			shared = true;
+		return new MacroTable(this);
+	}
+
+	private void unshare() {
+		if (shared) {
+			macros = macros.copy();
+			shared = false;
+		}
+	}
+
+	@CheckForNull
+	Macro get(@NonNull Symbol symbol) {
+		return macros.get(symbol);
+	}
+
+	@CheckForNull
+	Macro get(@NonNull String name) {
+		Symbol symbol = SymbolTable.lookup(name);
+		return symbol == null ? null : get(symbol);
+	}
+
+	/**
+	 * Returns the macro named by the given identifier token.
+	 */
+	@CheckForNull
+	Macro get(@NonNull Token tok) {
+		Symbol symbol = tok.getSymbol();
+		/* Tokens which weren't lexed by a LexerSource have no symbol. */
+		if (symbol == null)
+			return get(tok.getText());
+		return get(symbol);
+	}
+
+	boolean contains(@NonNull Token tok) {
+		return get(tok) != null;
+	}
+
+	@CheckForNull
+	Macro put(@NonNull Macro m) {
+		unshare();
+		return macros.put(m.getSymbol(), m);
+	}
+
+	@CheckForNull
+	Macro remove(@NonNull String name) {
+		Symbol symbol = SymbolTable.lookup(name);
+		if (symbol == null || macros.get(symbol) == null)
+			return null;
+		unshare();
+		return macros.remove(symbol);
+	}
+
+	int size() {
+		return macros.size();
+	}
+
+	/**
+	 * Returns a live Map view of this table.
+	 */
+	@NonNull
+	Map<String, Macro> asMap() {
+		return new AbstractMap<>() {
+			@Override
+			public Macro get(Object key) {
+				return key instanceof String name ? MacroTable.this.get(name) : null;
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return get(key) != null;
+			}
+
+			@Override
+			public Macro put(String key, Macro value) {
+				if (!key.equals(value.getName()))
+					throw new IllegalArgumentException(
+							"Macro " + value.getName() + " can't be stored as " + key);
+				return MacroTable.this.put(value);
+			}
+
+			@Override
+			public Macro remove(Object key) {
+				return key instanceof String name ? MacroTable.this.remove(name) : null;
+			}
+
+			@Override
+			public int size() {
+				return macros.size();
+			}
+
+			@Override
+			public Set<Entry<String, Macro>> entrySet() {
+				return new AbstractSet<>() {
+					@Override
+					public int size() {
+						return macros.size();
+					}
+
+					@Override
+					public Iterator<Entry<String, Macro>> iterator() {
+						return new Iterator<>() {
+							/* Removing entries moves others around, so it iterates over the map it started with. */
+							private final SymbolMap<Macro> map = macros;
+							private int next = advance(0);
+							private int last = -1;
+
+							private int advance(int i) {
+								while (i < map.capacity() && map.valueAt(i) == null)
+									i++;
+								return i;
+							}
+
+							@Override
+							public boolean hasNext() {
+								return next < map.capacity();
+							}
+
+							@Override
+							public Entry<String, Macro> next() {
+								if (!hasNext())
+									throw new NoSuchElementException();
+								Macro m = map.valueAt(next);
+								last = next;
+								next = advance(next + 1);
+								return new SimpleImmutableEntry<>(m.getName(), m);
+							}
+
+							@Override
+							public void remove() {
+								if (last < 0)
+									throw new IllegalStateException();
+								if (macros == map)
+									shared = true;
+								MacroTable.this.remove(map.valueAt(last).getName());
+								last = -1;
+							}
+						};
+					}
+				};
+			}
+		};
+	}
+}
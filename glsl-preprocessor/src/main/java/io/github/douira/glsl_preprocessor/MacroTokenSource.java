@@ -27,29 +27,59 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 /* This source should always be active, since we don't expand macros
  * in any inactive context. */
 class MacroTokenSource extends Source {
+	private static final Token EOF_TOKEN = new Token(EOF, -1, -1, "");
+
 	private final Macro macro;
-	private final Iterator<Token> tokens; /* Pointer into the macro. */
+	private final int[] code;
+	private final Token[] tokens;
+	private int pc; /* Pointer into the macro. */
 
 	private final List<Argument> args; /* { unexpanded, expanded } */
 
-	private Iterator<Token> arg; /* "current expansion" */
+	private List<Token> arg; /* "current expansion" */
+	private int argIndex;
+
+	private Preprocessor pp;
 
 	MacroTokenSource(@NonNull Macro m, @NonNull List<Argument> args) {
 		this.macro = m;
-		this.tokens = m.getTokens().iterator();
+		this.code = m.getCode();
+		this.tokens = m.getTokens();
 		this.args = args;
 		this.arg = null;
 	}
 
 	@Override
-	boolean isExpanding(@NonNull Macro m) {
-		/*
-		 * When we are expanding an arg, 'this' macro is not
-		 * being expanded, and thus we may re-expand it.
-		 */
-		if (/* XXX this.arg == null && */this.macro == m)
-			return true;
-		return super.isExpanding(m);
+	void init(Preprocessor pp) {
+		super.init(pp);
+		this.pp = pp;
+	}
+
+	@NonNull
+	Macro getMacro() {
+		return macro;
+	}
+
+	/*
+	 * Arguments are only expanded once they are used. The expansion
+	 * happens on top of this source, but in the context of the macro
+	 * invocation, where this macro isn't being expanded yet.
+	 */
+	@NonNull
+	private List<Token> expansion(@NonNull Argument argument) {
+		if (!argument.isExpanded()) {
+			/*
+			 * When we are expanding an arg, 'this' macro is not
+			 * being expanded, and thus we may re-expand it.
+			 */
+			pp.setExpanding(macro, false);
+			try {
+				argument.expand(pp);
+			} finally {
+				pp.setExpanding(macro, true);
+			}
+		}
+		return argument.getExpansion();
 	}
 
 	/* XXX Called from Preprocessor [ugly]. */
@@ -116,7 +146,7 @@ class MacroTokenSource extends Source {
 	/*
 	 * At this point, we have consumed the first M_PASTE.
 	 * 
-	 * @see Macro#addPaste(Token)
+	 * @see Macro.Builder#addPaste(Token)
 	 */
 	private void paste(@NonNull Token ptok) {
 		// List<Token> out = new ArrayList<Token>();
@@ -133,17 +163,17 @@ class MacroTokenSource extends Source {
 		// as it avoids duplicating all the logic around hasNext() in case COMMA.
 		boolean comma = false;
 		for (int i = 0; i < count; i++) {
-			if (!tokens.hasNext()) {
+			if (pc == code.length) {
 				/* XXX This one really should throw. */
 				error(ptok.getLine(), ptok.getColumn(),
 						"Paste at end of expansion");
 				buf.append(' ').append(ptok.getText());
 				break;
 			}
-			Token tok = tokens.next();
-			// System.out.println("Paste " + tok);
-			switch (tok.getType()) {
-				case M_PASTE:
+			int op = code[pc];
+			Token tok = tokens[pc++];
+			switch (op & Macro.OP_MASK) {
+				case Macro.OP_PASTE:
 					/*
 					 * One extra to paste, plus one because the
 					 * paste token didn't count.
@@ -151,8 +181,8 @@ class MacroTokenSource extends Source {
 					count += 2;
 					ptok = tok;
 					break;
-				case M_ARG:
-					int idx = (Integer) tok.getValue();
+				case Macro.OP_ARG:
+					int idx = op >>> Macro.OP_SHIFT;
 					Argument arg = args.get(idx);
 					if (comma && isVariadicArgument(idx) && arg.isEmpty()) {
 						// Ugly way to strip the comma.
@@ -161,18 +191,22 @@ class MacroTokenSource extends Source {
 						concat(buf, arg);
 					}
 					break;
-				/* XXX Test this. */
-				case CCOMMENT:
-				case CPPCOMMENT:
-					// TODO: In cpp, -CC keeps these comments too,
-					// but turns all C++ comments into C comments.
-					break;
-				case ',':
-					comma = true;
-					buf.append(tok.getText());
-					continue;
 				default:
-					buf.append(tok.getText());
+					switch (tok.getType()) {
+						/* XXX Test this. */
+						case CCOMMENT:
+						case CPPCOMMENT:
+							// TODO: In cpp, -CC keeps these comments too,
+							// but turns all C++ comments into C comments.
+							break;
+						case ',':
+							comma = true;
+							buf.append(tok.getText());
+							continue;
+						default:
+							buf.append(tok.getText());
+							break;
+					}
 					break;
 			}
 			comma = false;
@@ -184,10 +218,9 @@ class MacroTokenSource extends Source {
 		 * escape(src, buf);
 		 * StringLexerSource sl = new StringLexerSource(src.toString());
 		 */
-		StringLexerSource sl = new StringLexerSource(buf.toString());
-
 		/* XXX Check that concatenation produces a valid token. */
-		arg = new SourceIterator(sl);
+		arg = pp.getPaster().paste(buf.toString());
+		argIndex = 0;
 	}
 
 	@Override
@@ -196,8 +229,8 @@ class MacroTokenSource extends Source {
 			/* Deal with lexed tokens first. */
 
 			if (arg != null) {
-				if (arg.hasNext()) {
-					Token tok = arg.next();
+				if (argIndex < arg.size()) {
+					Token tok = arg.get(argIndex++);
 					/* XXX PASTE -> INVALID. */
 					assert tok.getType() != M_PASTE : "Unexpected paste token";
 					return tok;
@@ -205,23 +238,21 @@ class MacroTokenSource extends Source {
 				arg = null;
 			}
 
-			if (!tokens.hasNext())
-				return new Token(EOF, -1, -1, ""); /* End of macro. */
+			if (pc == code.length)
+				return EOF_TOKEN; /* End of macro. */
 
-			Token tok = tokens.next();
-			int idx;
-			switch (tok.getType()) {
-				case M_STRING:
+			int op = code[pc];
+			Token tok = tokens[pc++];
+			switch (op & Macro.OP_MASK) {
+				case Macro.OP_STRINGIFY:
 					/* Use the nonexpanded arg. */
-					idx = (Integer) tok.getValue();
-					return stringify(tok, args.get(idx));
-				case M_ARG:
+					return stringify(tok, args.get(op >>> Macro.OP_SHIFT));
+				case Macro.OP_ARG:
 					/* Expand the arg. */
-					idx = (Integer) tok.getValue();
-					// System.out.println("Pushing arg " + args.get(idx));
-					arg = args.get(idx).expansion();
+					arg = expansion(args.get(op >>> Macro.OP_SHIFT));
+					argIndex = 0;
 					break;
-				case M_PASTE:
+				case Macro.OP_PASTE:
 					paste(tok);
 					break;
 				default:
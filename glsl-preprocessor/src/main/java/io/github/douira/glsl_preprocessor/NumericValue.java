@@ -39,6 +39,9 @@ public class NumericValue extends Number {
 	private int expbase = 0;
 	private String exponent;
 	private int flags;
+	/* The parsed long value, shared by every evaluation of the token. */
+	private long longValue;
+	private volatile boolean hasLongValue = false;
 
 	public NumericValue(int base, @NonNull String integer) {
 		this.base = base;
@@ -75,6 +78,7 @@ public class NumericValue extends Number {
 	void setExponent(int expbase, @NonNull String exponent) {
 		this.expbase = expbase;
 		this.exponent = exponent;
+		this.hasLongValue = false;
 	}
 
 	public int getFlags() {
@@ -150,12 +154,16 @@ public class NumericValue extends Number {
 
 	@Override
 	public long longValue() {
+		if (hasLongValue)
+			return longValue;
 		// String.isEmpty() is since 1.6
 		long v = integer.isEmpty() ? 0 : Long.parseLong(integer, base);
 		if (expbase == 2)
 			v = v << exponentValue();
 		else if (expbase != 0)
 			v = (long) (v * Math.pow(expbase, exponentValue()));
+		longValue = v;
+		hasLongValue = true;
 		return v;
 	}
 
@@ -28,7 +28,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.Reader;
-import java.io.StringReader;
 import java.util.*;
 
 import static io.github.douira.glsl_preprocessor.PreprocessorCommand.PP_ERROR;
@@ -88,17 +87,24 @@ public class Preprocessor implements Closeable {
 	private static final Macro __FILE__ = new Macro(INTERNAL, "__FILE__");
 	private static final Macro __COUNTER__ = new Macro(INTERNAL, "__COUNTER__");
 
-	private final List<Source> inputs = new ArrayList<>();
+	private final Deque<Source> inputs = new ArrayDeque<>();
 
 	/* The fundamental engine. */
-	private final Map<String, Macro> macros = new HashMap<>();
-	private final Stack<State> states = new Stack<>();
+	private MacroTable macros = new MacroTable();
+	private final ConditionalStack states = new ConditionalStack();
 	private Source source = null;
+	/* The innermost source on the stack which isn't a macro expansion, and provides the position. */
+	private Source fileSource = null;
 
 	/* Miscellaneous support. */
 	private int counter = 0;
 	private final Set<String> onceSeenPaths = new HashSet<>();
 	private final List<VirtualFile> includes = new ArrayList<>();
+	private final SymbolMap<Symbol> dependencySymbols = new SymbolMap<>();
+	private final Set<String> dependencies = new LinkedHashSet<>();
+	private final TokenPaster paster = new TokenPaster();
+	/* The number of sources on the stack expanding each macro, absent if none. */
+	private final SymbolMap<Integer> expanding = new SymbolMap<>();
 
 	private final Map<String, Integer> sourceNumbers = new HashMap<>();
 	private int sourceNumber = 0;
@@ -106,13 +112,13 @@ public class Preprocessor implements Closeable {
 	private final Set<Feature> features = EnumSet.noneOf(Feature.class);
 	private final Set<Warning> warnings = EnumSet.noneOf(Warning.class);
 	private VirtualFileSystem fileSystem = VirtualFileSystem.EMPTY;
+	private IncludeCache includeCache = null;
 	private PreprocessorListener listener = null;
 
 	{
-		macros.put(__LINE__.getName(), __LINE__);
-		macros.put(__FILE__.getName(), __FILE__);
-		macros.put(__COUNTER__.getName(), __COUNTER__);
-		states.push(new State());
+		macros.put(__LINE__);
+		macros.put(__FILE__);
+		macros.put(__COUNTER__);
 	}
 
 	public Preprocessor() {
@@ -127,7 +133,20 @@ public class Preprocessor implements Closeable {
 	}
 
 	public Preprocessor(@NonNull String r) {
-		this(new StringReader(r));
+		this(new LexerSource(r, true));
+	}
+
+	/**
+	 * Creates a Preprocessor which starts with the macro environment
+	 * of the given snapshot.
+	 *
+	 * This takes constant time in the number of macros, which are
+	 * only copied once this Preprocessor changes them.
+	 */
+	public Preprocessor(@NonNull MacroSnapshot snapshot) {
+		this.macros = snapshot.copyMacros();
+		this.onceSeenPaths.addAll(snapshot.getOnceSeenPaths());
+		this.counter = snapshot.getCounter();
 	}
 
 	/**
@@ -145,6 +164,24 @@ public class Preprocessor implements Closeable {
 		return fileSystem;
 	}
 
+	/**
+	 * Sets the IncludeCache used by this Preprocessor to avoid lexing
+	 * included files again. A null cache disables caching.
+	 *
+	 * The same cache may be shared by multiple Preprocessors.
+	 */
+	public void setIncludeCache(@CheckForNull IncludeCache includeCache) {
+		this.includeCache = includeCache;
+	}
+
+	/**
+	 * Returns the IncludeCache used by this Preprocessor.
+	 */
+	@CheckForNull
+	public IncludeCache getIncludeCache() {
+		return includeCache;
+	}
+
 	/**
 	 * Sets the PreprocessorListener which handles events for
 	 * this Preprocessor.
@@ -253,7 +290,7 @@ public class Preprocessor implements Closeable {
 	}
 	
 	public void addInput(@NonNull String input) {
-		this.addInput(new LexerSource(new StringReader(input), true));
+		this.addInput(new LexerSource(input, true));
 	}
 
 	/**
@@ -312,7 +349,8 @@ public class Preprocessor implements Closeable {
 	 * Adds a Macro to this Preprocessor.
 	 *
 	 * The given {@link Macro} object encapsulates both the name
-	 * and the expansion.
+	 * and the expansion. Macros are immutable, so the same object
+	 * may be added to any number of Preprocessors.
 	 *
 	 * @throws LexerException if the definition fails or is otherwise illegal.
 	 */
@@ -322,7 +360,7 @@ public class Preprocessor implements Closeable {
 		/* Already handled as a source error in macro(). */
 		if ("defined".equals(name))
 			throw new LexerException("Cannot redefine name 'defined'");
-		macros.put(m.getName(), m);
+		macros.put(m);
 	}
 
 	/**
@@ -334,7 +372,7 @@ public class Preprocessor implements Closeable {
 	 * @throws LexerException if the definition fails or is otherwise illegal.
 	 */
 	public void addMacro(@NonNull String name, @NonNull String value) {
-		Macro m = new Macro(name);
+		Macro.Builder m = new Macro.Builder(name);
 		try (StringLexerSource s = new StringLexerSource(value)) {
 			while (true) {
 				Token tok = s.token();
@@ -343,7 +381,7 @@ public class Preprocessor implements Closeable {
 				m.addToken(tok);
 			}
 		}
-		addMacro(m);
+		addMacro(m.build());
 	}
 
 	/**
@@ -362,18 +400,32 @@ public class Preprocessor implements Closeable {
 	 * Returns the Map of Macros parsed during the run of this
 	 * Preprocessor.
 	 *
+	 * The map is a live view. Macros put into it must be stored
+	 * under their own name.
+	 *
 	 * @return The {@link Map} of macros currently defined.
 	 */
 	@NonNull
 	public Map<String, Macro> getMacros() {
-		return macros;
+		return macros.asMap();
 	}
 
 	/**
-	 * Returns the named macro.
+	 * Returns a snapshot of the current macro environment of this
+	 * Preprocessor, from which other Preprocessors can be started.
+	 *
+	 * This takes constant time in the number of macros. They are
+	 * only copied once this Preprocessor changes them afterwards.
 	 *
-	 * While you can modify the returned object, unexpected things
-	 * might happen if you do.
+	 * @see #Preprocessor(MacroSnapshot)
+	 */
+	@NonNull
+	public MacroSnapshot snapshot() {
+		return new MacroSnapshot(macros.copy(), onceSeenPaths, counter);
+	}
+
+	/**
+	 * Returns the named macro.
 	 *
 	 * @return the Macro object, or null if not found.
 	 */
@@ -382,6 +434,60 @@ public class Preprocessor implements Closeable {
 		return macros.get(name);
 	}
 
+	/**
+	 * Marks the start or end of an expansion of the given macro.
+	 *
+	 * A macro isn't expanded again while it's being expanded, which
+	 * prevents recursion.
+	 */
+	void setExpanding(@NonNull Macro m, boolean b) {
+		Symbol symbol = m.getSymbol();
+		Integer count = expanding.get(symbol);
+		int n = (count == null ? 0 : count) + (b ? 1 : -1);
+		if (n > 0)
+			expanding.put(symbol, n);
+		else
+			expanding.remove(symbol);
+	}
+
+	private boolean isExpanding(@NonNull Macro m) {
+		return expanding.get(m.getSymbol()) != null;
+	}
+
+	@NonNull
+	TokenPaster getPaster() {
+		return paster;
+	}
+
+	/**
+	 * Returns the names of the macros which were looked up while
+	 * preprocessing, whether or not they were defined.
+	 *
+	 * This includes identifiers considered for expansion, the operands
+	 * of <code>defined</code>, <code>#ifdef</code> and <code>#ifndef</code>.
+	 * The output only depends on the macros in this set. Recording is
+	 * enabled by {@link Feature#MACRO_DEPENDENCIES}.
+	 *
+	 * @return the macro names in the order they were first looked up.
+	 */
+	@NonNull
+	public Set<String> getMacroDependencies() {
+		return Collections.unmodifiableSet(dependencies);
+	}
+
+	/* Returns the macro named by an identifier, recording the lookup if requested. */
+	@CheckForNull
+	private Macro lookup(@NonNull Token tok) {
+		if (features.contains(Feature.MACRO_DEPENDENCIES)) {
+			Symbol symbol = tok.getSymbol();
+			if (symbol == null)
+				symbol = SymbolTable.intern(tok.getText());
+			if (dependencySymbols.put(symbol, symbol) == null)
+				dependencies.add(symbol.getText());
+		}
+		return macros.get(tok);
+	}
+
 	/**
 	 * Returns the list of {@link VirtualFile VirtualFiles} which have been
 	 * included by this Preprocessor.
@@ -396,21 +502,16 @@ public class Preprocessor implements Closeable {
 
 	/* States */
 	private void push_state() {
-		State top = states.peek();
-		states.push(new State(top));
+		states.push();
 	}
 
 	private void pop_state() {
-		State s = states.pop();
-		if (states.isEmpty()) {
+		if (!states.pop())
 			error(0, 0, "#" + "endif without #" + "if");
-			states.push(s);
-		}
 	}
 
 	private boolean isActive() {
-		State state = states.peek();
-		return state.isParentActive() && state.isActive();
+		return states.isEnabled();
 	}
 
 	/* Sources */
@@ -440,10 +541,14 @@ public class Preprocessor implements Closeable {
 	protected void push_source(@NonNull Source source, boolean autopop) {
 		source.init(this);
 		source.setParent(this.source, autopop);
+		if (source instanceof MacroTokenSource expansion)
+			setExpanding(expansion.getMacro(), true);
 		// source.setListener(listener);
 		if (listener != null)
 			listener.handleSourceChange(this.source, SourceChangeEvent.SUSPEND);
 		this.source = source;
+		if (!isExpansion(source))
+			this.fileSource = source;
 		if (listener != null)
 			listener.handleSourceChange(this.source, SourceChangeEvent.PUSH);
 	}
@@ -462,12 +567,19 @@ public class Preprocessor implements Closeable {
 			listener.handleSourceChange(this.source, SourceChangeEvent.POP);
 		Source s = this.source;
 		this.source = s.getParent();
+		if (s instanceof MacroTokenSource expansion)
+			setExpanding(expansion.getMacro(), false);
+		if (s == fileSource) {
+			fileSource = this.source;
+			while (fileSource != null && isExpansion(fileSource))
+				fileSource = fileSource.getParent();
+		}
 		/* Always a noop unless called externally. */
 		s.close();
 		if (listener != null && this.source != null)
 			listener.handleSourceChange(this.source, SourceChangeEvent.RESUME);
 
-		Source t = getSource();
+		Source t = getFileSource();
 		if (createLineMarker && getFeature(Feature.LINE_MARKERS) && s.isNumbered() && t != null) {
 			/*
 			 * We actually want 'did the nested source
@@ -484,11 +596,28 @@ public class Preprocessor implements Closeable {
 		pop_source(false);
 	}
 
+	/* Expansions take their position from the source they are expanded in. */
+	private static boolean isExpansion(@NonNull Source s) {
+		return s instanceof MacroTokenSource || s instanceof FixedTokenSource;
+	}
+
+	/*
+	 * Returns the source which provides the name and position of the
+	 * current source, without asking each expansion for it in turn.
+	 */
+	@CheckForNull
+	private Source getFileSource() {
+		return fileSource != null ? fileSource : source;
+	}
+
+	/* Tokens are immutable, so the end of input is always the same token. */
+	private static final Token EOF_TOKEN = new Token(EOF);
+
 	@NonNull
 	private Token next_source() {
 		if (inputs.isEmpty())
-			return new Token(EOF);
-		Source s = inputs.remove(0);
+			return EOF_TOKEN;
+		Source s = inputs.poll();
 		push_source(s, true);
 		return line_token(s.getLine(), s.getName(), LINE_MARKER_FLAG_NEW_FILE);
 	}
@@ -658,7 +787,9 @@ public class Preprocessor implements Closeable {
 			if (tok.getType() != ')' || m.getArgs() > 0) {
 				args = new ArrayList<>();
 
-				Argument arg = new Argument();
+				/* The arguments are views of the tokens collected for all of them. */
+				List<Token> tokens = new ArrayList<>();
+				int start = 0;
 				int depth = 0;
 				boolean space = false;
 
@@ -674,29 +805,29 @@ public class Preprocessor implements Closeable {
 								if (m.isVariadic()
 										&& /* We are building the last arg. */ args.size() == m.getArgs() - 1) {
 									/* Just add the comma. */
-									arg.addToken(tok);
+									tokens.add(tok);
 								} else {
-									args.add(arg);
-									arg = new Argument();
+									args.add(new Argument(tokens, start, tokens.size()));
+									start = tokens.size();
 								}
 							} else {
-								arg.addToken(tok);
+								tokens.add(tok);
 							}
 							space = false;
 							break;
 						case ')':
 							if (depth == 0) {
-								args.add(arg);
+								args.add(new Argument(tokens, start, tokens.size()));
 								break ARGS;
 							} else {
 								depth--;
-								arg.addToken(tok);
+								tokens.add(tok);
 							}
 							space = false;
 							break;
 						case '(':
 							depth++;
-							arg.addToken(tok);
+							tokens.add(tok);
 							space = false;
 							break;
 
@@ -713,9 +844,9 @@ public class Preprocessor implements Closeable {
 							 * Do not put space on the beginning of
 							 * an argument token.
 							 */
-							if (space && !arg.isEmpty())
-								arg.addToken(Token.space);
-							arg.addToken(tok);
+							if (space && tokens.size() > start)
+								tokens.add(Token.space);
+							tokens.add(tok);
 							space = false;
 							break;
 
@@ -731,7 +862,7 @@ public class Preprocessor implements Closeable {
 				if (args.size() != m.getArgs()) {
 					if (m.isVariadic()) {
 						if (args.size() == m.getArgs() - 1) {
-							args.add(new Argument());
+							args.add(new Argument(tokens, tokens.size(), tokens.size()));
 						} else {
 							error(tok,
 									"variadic macro " + m.getName()
@@ -753,9 +884,7 @@ public class Preprocessor implements Closeable {
 					}
 				}
 
-				for (Argument a : args) {
-					a.expand(this);
-				}
+				/* Arguments are expanded by the MacroTokenSource once they are used. */
 
 				// System.out.println("Macro " + m + " args " + args);
 			} else {
@@ -777,7 +906,7 @@ public class Preprocessor implements Closeable {
 					true);
 		} else if (m == __FILE__) {
 			StringBuilder buf = new StringBuilder("\"");
-			String name = getSource().getName();
+			String name = getFileSource().getName();
 			if (name == null)
 				name = "<no file>";
 			for (int i = 0; i < name.length(); i++) {
@@ -813,6 +942,15 @@ public class Preprocessor implements Closeable {
 									Integer.toString(value),
 									new NumericValue(10, Integer.toString(value)))),
 					true);
+		} else if (args == null && isInline(m)) {
+			/*
+			 * An expansion of at most one token is rescanned without
+			 * pushing a source for it. The token is shared, like the
+			 * tokens a MacroTokenSource returns.
+			 */
+			Token[] tokens = m.getTokens();
+			if (tokens.length == 1)
+				source_untoken(tokens[0]);
 		} else {
 			push_source(new MacroTokenSource(m, args), true);
 		}
@@ -820,10 +958,27 @@ public class Preprocessor implements Closeable {
 		return true;
 	}
 
+	/*
+	 * Expansions which can be rescanned without a MacroTokenSource: those
+	 * without a directive or an identifier which could expand further,
+	 * where the missing source would make a difference.
+	 */
+	private boolean isInline(@NonNull Macro m) {
+		Token[] tokens = m.getTokens();
+		if (tokens.length == 0)
+			return true;
+		if (tokens.length > 1)
+			return false;
+		return switch (tokens[0].getType()) {
+			case HASH, M_ARG, M_STRING, M_PASTE -> false;
+			case IDENTIFIER -> !macros.contains(tokens[0]);
+			default -> true;
+		};
+	}
+
 	/**
 	 * Expands an argument.
 	 */
-	/* I'd rather this was done lazily, but doing so breaks spec. */
 	@NonNull
 	List<Token> expand(@NonNull List<Token> arg) {
 		List<Token> expansion = new ArrayList<>();
@@ -860,6 +1015,17 @@ public class Preprocessor implements Closeable {
 
 	/* processes a #define directive */
 	private Token define() {
+		/* Definitions in replayed files are compiled when they are first executed. */
+		TokenizedFileSource file = source instanceof TokenizedFileSource s ? s : null;
+		int directive = file == null ? -1 : file.directive();
+		if (directive >= 0 && file.getDirectiveCode(directive) instanceof Macro compiled) {
+			Macro m = compiled.withSource(file);
+			if (getFeature(Feature.DEBUG))
+				LOG.debug("Defined macro {}", m);
+			addMacro(m);
+			return file.endDirective(directive);
+		}
+
 		Token tok = source_token_nonwhite();
 		if (tok.getType() != IDENTIFIER) {
 			error(tok, "Expected identifier");
@@ -873,7 +1039,7 @@ public class Preprocessor implements Closeable {
 			return source_skipline(false);
 		}
 
-		Macro m = new Macro(getSource(), name);
+		Macro.Builder builder = new Macro.Builder(getSource(), name);
 		List<String> args;
 
 		tok = source_token();
@@ -910,10 +1076,12 @@ public class Preprocessor implements Closeable {
 							break;
 						case ELLIPSIS:
 							tok = source_token_nonwhite();
-							if (tok.getType() != ')')
+							if (tok.getType() != ')') {
 								error(tok,
 										"ellipsis must be on last argument");
-							m.setVariadic(true);
+								directive = -1;
+							}
+							builder.setVariadic(true);
 							break ARGS;
 						case ')':
 							break ARGS;
@@ -937,7 +1105,7 @@ public class Preprocessor implements Closeable {
 				args = Collections.emptyList();
 			}
 
-			m.setArgs(args);
+			builder.setArgs(args);
 		} else {
 			/* For searching. */
 			args = Collections.emptyList();
@@ -969,7 +1137,7 @@ public class Preprocessor implements Closeable {
 				case PASTE:
 					space = false;
 					paste = true;
-					m.addPaste(new Token(M_PASTE,
+					builder.addPaste(new Token(M_PASTE,
 							tok.getLine(), tok.getColumn(),
 							"#" + "#", null));
 					break;
@@ -977,17 +1145,17 @@ public class Preprocessor implements Closeable {
 				/* Stringify. */
 				case '#':
 					if (space)
-						m.addToken(Token.space);
+						builder.addToken(Token.space);
 					space = false;
 					Token la = source_token_nonwhite();
 					if (la.getType() == IDENTIFIER
 							&& ((idx = args.indexOf(la.getText())) != -1)) {
-						m.addToken(new Token(M_STRING,
+						builder.addToken(new Token(M_STRING,
 								la.getLine(), la.getColumn(),
 								"#" + la.getText(),
 								idx));
 					} else {
-						m.addToken(tok);
+						builder.addToken(tok);
 						/* Allow for special processing. */
 						source_untoken(la);
 					}
@@ -995,14 +1163,14 @@ public class Preprocessor implements Closeable {
 
 				case IDENTIFIER:
 					if (space)
-						m.addToken(Token.space);
+						builder.addToken(Token.space);
 					space = false;
 					paste = false;
 					idx = args.indexOf(tok.getText());
 					if (idx == -1)
-						m.addToken(tok);
+						builder.addToken(tok);
 					else
-						m.addToken(new Token(M_ARG,
+						builder.addToken(new Token(M_ARG,
 								tok.getLine(), tok.getColumn(),
 								tok.getText(),
 								idx));
@@ -1010,18 +1178,21 @@ public class Preprocessor implements Closeable {
 
 				default:
 					if (space)
-						m.addToken(Token.space);
+						builder.addToken(Token.space);
 					space = false;
 					paste = false;
-					m.addToken(tok);
+					builder.addToken(tok);
 					break;
 			}
 			tok = source_token();
 		}
 
+		Macro m = builder.build();
 		if (getFeature(Feature.DEBUG))
 			LOG.debug("Defined macro {}", m);
 		addMacro(m);
+		if (directive >= 0 && tok.getType() == NL)
+			file.setDirectiveCode(directive, m.withSource(null));
 
 		return tok; /* NL or EOF. */
 
@@ -1036,7 +1207,7 @@ public class Preprocessor implements Closeable {
 			if (tok.getType() == NL || tok.getType() == EOF)
 				return tok;
 		} else {
-			Macro m = getMacro(tok.getText());
+			Macro m = macros.get(tok);
 			if (m != null) {
 				/* XXX error if predefined */
 				macros.remove(m.getName());
@@ -1060,7 +1231,10 @@ public class Preprocessor implements Closeable {
 		if (getFeature(Feature.DEBUG))
 			LOG.debug("pp: including {}", file);
 		includes.add(file);
-		push_source(file.getSource(), true);
+		if (includeCache != null)
+			push_source(includeCache.getSource(this, file), true);
+		else
+			push_source(file.getSource(), true);
 		return true;
 	}
 
@@ -1077,7 +1251,13 @@ public class Preprocessor implements Closeable {
 
 	@NonNull
 	private Token include(boolean next) {
-		LexerSource lexer = (LexerSource) source;
+		if (source instanceof TokenizedFileSource file) {
+			int directive = file.directive();
+			if (directive >= 0 && file.getDirectiveCode(directive) instanceof TokenizedFile.Include target)
+				return include(file.endDirective(target), target.name(), target.quoted(), next);
+		}
+
+		Source lexer = source;
 		try {
 			lexer.setInclude(true);
 			Token tok = token_nonwhite();
@@ -1123,22 +1303,27 @@ public class Preprocessor implements Closeable {
 				};
 			}
 
-			/* Do the inclusion. */
-			include(source, tok.getLine(), name, quoted, next);
-
-			/*
-			 * 'tok' is the 'nl' after the include. We use it after the
-			 * #line directive.
-			 */
-			if (getFeature(Feature.LINE_MARKERS)) {
-				return line_token(1, source.getName(), LINE_MARKER_FLAG_NEW_FILE);
-			}
-			return tok;
+			return include(tok, name, quoted, next);
 		} finally {
 			lexer.setInclude(false);
 		}
 	}
 
+	@NonNull
+	private Token include(@NonNull Token tok, @NonNull String name, boolean quoted, boolean next) {
+		/* Do the inclusion. */
+		include(source, tok.getLine(), name, quoted, next);
+
+		/*
+		 * 'tok' is the 'nl' after the include. We use it after the
+		 * #line directive.
+		 */
+		if (getFeature(Feature.LINE_MARKERS)) {
+			return line_token(1, getFileSource().getName(), LINE_MARKER_FLAG_NEW_FILE);
+		}
+		return tok;
+	}
+
 	protected void pragma_once(@NonNull Token name) {
 		Source s = this.source;
 		if (!onceSeenPaths.add(s.getPath())) {
@@ -1263,10 +1448,10 @@ public class Preprocessor implements Closeable {
 			Token tok = source_token();
 			// System.out.println("Source token is " + tok);
 			if (tok.getType() == IDENTIFIER) {
-				Macro m = getMacro(tok.getText());
+				Macro m = lookup(tok);
 				if (m == null)
 					return tok;
-				if (source.isExpanding(m))
+				if (isExpanding(m))
 					return tok;
 				if (macro(m, tok))
 					continue;
@@ -1285,8 +1470,19 @@ public class Preprocessor implements Closeable {
 		return tok;
 	}
 
+	/* The results of defined(), which are the same for every evaluation. */
+	private static final Token EXPR_TRUE = new Token(NUMBER, -1, -1, "1", new NumericValue(10, "1"));
+	private static final Token EXPR_FALSE = new Token(NUMBER, -1, -1, "0", new NumericValue(10, "0"));
+
 	@CheckForNull
 	private Token expr_token = null;
+	/* The compiled condition which is being evaluated instead of the source, if any. */
+	@CheckForNull
+	private TokenizedFile.Condition expr_condition = null;
+	private int expr_index;
+	/* Where the last result of defined() was read, for errors about it. */
+	private int expr_defined_line;
+	private int expr_defined_column;
 
 	@NonNull
 	private Token expr_token() {
@@ -1296,36 +1492,38 @@ public class Preprocessor implements Closeable {
 			// System.out.println("ungetting");
 			expr_token = null;
 		} else {
-			tok = expanded_token_nonwhite();
+			tok = expr_condition != null ? expr_condition_token() : expanded_token_nonwhite();
 			// System.out.println("expt is " + tok);
 
 			if (tok.getType() == IDENTIFIER
 					&& tok.getText().equals("defined")) {
-				Token la = source_token_nonwhite();
+				Token la;
 				boolean paren = false;
-				if (la.getType() == '(') {
-					paren = true;
+				if (expr_condition != null) {
+					/* Compiled conditions hold the tested identifier. */
+					la = expr_condition.operands[expr_index - 1];
+				} else {
 					la = source_token_nonwhite();
+					if (la.getType() == '(') {
+						paren = true;
+						la = source_token_nonwhite();
+					}
 				}
 
 				// System.out.println("Core token is " + la);
+				expr_defined_line = la.getLine();
+				expr_defined_column = la.getColumn();
 				if (la.getType() != IDENTIFIER) {
 					error(la,
 							"defined() needs identifier, not "
 									+ la.getText());
-					tok = new Token(NUMBER,
-							la.getLine(), la.getColumn(),
-							"0", new NumericValue(10, "0"));
-				} else if (macros.containsKey(la.getText())) {
+					tok = EXPR_FALSE;
+				} else if (lookup(la) != null) {
 					// System.out.println("Found macro");
-					tok = new Token(NUMBER,
-							la.getLine(), la.getColumn(),
-							"1", new NumericValue(10, "1"));
+					tok = EXPR_TRUE;
 				} else {
 					// System.out.println("Not found macro");
-					tok = new Token(NUMBER,
-							la.getLine(), la.getColumn(),
-							"0", new NumericValue(10, "0"));
+					tok = EXPR_FALSE;
 				}
 
 				if (paren) {
@@ -1342,6 +1540,76 @@ public class Preprocessor implements Closeable {
 		return tok;
 	}
 
+	/* Reads the next token of the compiled condition, expanding it like expanded_token(). */
+	@NonNull
+	private Token expr_condition_token() {
+		Token tok = expr_condition.tokens[expr_index++];
+		if (tok.getType() == IDENTIFIER) {
+			Macro m = lookup(tok);
+			if (m != null)
+				tok = m.getTokens()[0];
+		}
+		return tok;
+	}
+
+	/*
+	 * Compiled conditions can be evaluated if each macro in them expands
+	 * to a single number, which is all expanded_token() would do.
+	 */
+	private boolean isCompiled(@NonNull TokenizedFile.Condition condition) {
+		for (int i = 0; i < condition.tokens.length; i++) {
+			Token tok = condition.tokens[i];
+			if (tok.getType() != IDENTIFIER)
+				continue;
+			Macro m = macros.get(tok);
+			if (m == null)
+				continue;
+			if (condition.operands[i] != null || m.isFunctionLike() || isExpanding(m))
+				return false;
+			Token[] tokens = m.getTokens();
+			if (tokens.length != 1 || tokens[0].getType() != NUMBER)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluates the expression of an #if or #elif directive.
+	 *
+	 * @return the NL ending the directive.
+	 */
+	@NonNull
+	private Token condition() {
+		TokenizedFileSource file = null;
+		TokenizedFile.Condition condition = null;
+		if (source instanceof TokenizedFileSource s) {
+			int directive = s.directive();
+			if (directive >= 0 && s.getDirectiveCode(directive) instanceof TokenizedFile.Condition c
+					&& isCompiled(c)) {
+				file = s;
+				condition = c;
+			}
+		}
+
+		expr_token = null;
+		expr_condition = condition;
+		expr_index = 0;
+		Token tok;
+		try {
+			states.setActive(expr() != 0);
+			tok = expr_token(); /* unget */
+		} finally {
+			expr_condition = null;
+		}
+		/* Continue after the last token which was read from the condition. */
+		if (file != null)
+			file.seek(condition.next[expr_index - 1]);
+
+		if (tok.getType() == NL)
+			return tok;
+		return source_skipline(true);
+	}
+
 	private void expr_untoken(@NonNull Token tok) {
 		if (expr_token != null)
 			throw new InternalException(
@@ -1349,6 +1617,13 @@ public class Preprocessor implements Closeable {
 		expr_token = tok;
 	}
 
+	private void expr_error(@NonNull Token tok, @NonNull String msg) {
+		if (tok == EXPR_TRUE || tok == EXPR_FALSE)
+			error(expr_defined_line, expr_defined_column, msg);
+		else
+			error(tok, msg);
+	}
+
 	private int expr_priority(@NonNull Token op) {
 		return switch (op.getType()) {
 			case '/' -> 11;
@@ -1386,164 +1661,221 @@ public class Preprocessor implements Closeable {
 		return text.charAt(0);
 	}
 
-	private long expr(int priority) {
-		/*
-		 * (new Exception("expr(" + priority + ") called")).printStackTrace();
-		 */
-
-		Token tok = expr_token();
-		long lhs, rhs;
-
-		// System.out.println("Expr lhs token is " + tok);
-		switch (tok.getType()) {
-			case '(':
-				lhs = expr(0);
-				tok = expr_token();
-				if (tok.getType() != ')') {
-					expr_untoken(tok);
-					error(tok, "Missing ) in expression. Got " + tok.getText());
-					return 0;
-				}
-				break;
-
-			case '~':
-				lhs = ~expr(11);
-				break;
-			case '!':
-				lhs = expr(11) == 0 ? 1 : 0;
-				break;
-			case '-':
-				lhs = -expr(11);
-				break;
-			case NUMBER:
-				NumericValue value = (NumericValue) tok.getValue();
-				lhs = value.longValue();
-				break;
-			case CHARACTER:
-				lhs = expr_char(tok);
-				break;
-			case IDENTIFIER:
-				if (warnings.contains(Warning.UNDEF))
-					warning(tok, "Undefined token '" + tok.getText()
-							+ "' encountered in conditional.");
-				lhs = 0;
-				break;
+	/* What a frame of the expression stack does with the value of its operand. */
+	private static final int EXPR_PAREN = 0;
+	private static final int EXPR_COMPL = 1;
+	private static final int EXPR_NOT = 2;
+	private static final int EXPR_NEG = 3;
+	private static final int EXPR_BINARY = 4;
+	private static final int EXPR_TERNARY = 5;
 
-			default:
-				expr_untoken(tok);
-				error(tok,
-						"Bad token in expression: " + tok.getText());
-				return 0;
+	/*
+	 * The expression stack. A frame is an operand being parsed, with the
+	 * lowest priority of the operators which may follow it and the value
+	 * of its left-hand side. The arrays are reused by all expressions.
+	 */
+	private int[] expr_pri = new int[16];
+	private int[] expr_cont = new int[16];
+	private long[] expr_lhs = new long[16];
+	private long[] expr_rhs = new long[16];
+	private Token[] expr_op = new Token[16];
+
+	/* Pushes a frame for an operand and returns its index. */
+	private int expr_push(int sp, int priority) {
+		if (++sp == expr_pri.length) {
+			int length = sp * 2;
+			expr_pri = Arrays.copyOf(expr_pri, length);
+			expr_cont = Arrays.copyOf(expr_cont, length);
+			expr_lhs = Arrays.copyOf(expr_lhs, length);
+			expr_rhs = Arrays.copyOf(expr_rhs, length);
+			expr_op = Arrays.copyOf(expr_op, length);
 		}
+		expr_pri[sp] = priority;
+		return sp;
+	}
 
-		while (true) {
-			// System.out.println("expr: lhs is " + lhs + ", pri = " + priority);
-			Token op = expr_token();
-			int pri = expr_priority(op); /* 0 if not a binop. */
+	/**
+	 * Evaluates a conditional expression.
+	 *
+	 * This is a precedence climbing parser which keeps its operands on an
+	 * explicit stack, so deeply nested expressions don't exhaust the Java
+	 * stack.
+	 */
+	private long expr() {
+		int sp = expr_push(-1, 0);
+		long value;
+		boolean operand = true;
 
-			if (pri == 0 || priority >= pri) {
+		while (true) {
+			if (operand) {
+				Token tok = expr_token();
+				switch (tok.getType()) {
+					case '(':
+						expr_cont[sp] = EXPR_PAREN;
+						sp = expr_push(sp, 0);
+						continue;
+					case '~':
+						expr_cont[sp] = EXPR_COMPL;
+						sp = expr_push(sp, 11);
+						continue;
+					case '!':
+						expr_cont[sp] = EXPR_NOT;
+						sp = expr_push(sp, 11);
+						continue;
+					case '-':
+						expr_cont[sp] = EXPR_NEG;
+						sp = expr_push(sp, 11);
+						continue;
+					case NUMBER:
+						expr_lhs[sp] = ((NumericValue) tok.getValue()).longValue();
+						operand = false;
+						continue;
+					case CHARACTER:
+						expr_lhs[sp] = expr_char(tok);
+						operand = false;
+						continue;
+					case IDENTIFIER:
+						if (warnings.contains(Warning.UNDEF))
+							warning(tok, "Undefined token '" + tok.getText()
+									+ "' encountered in conditional.");
+						expr_lhs[sp] = 0;
+						operand = false;
+						continue;
+					default:
+						expr_untoken(tok);
+						expr_error(tok,
+								"Bad token in expression: " + tok.getText());
+						value = 0;
+						break;
+				}
+			} else {
+				Token op = expr_token();
+				int pri = expr_priority(op); /* 0 if not a binop. */
+				if (pri != 0 && expr_pri[sp] < pri) {
+					expr_cont[sp] = EXPR_BINARY;
+					expr_op[sp] = op;
+					sp = expr_push(sp, pri);
+					operand = true;
+					continue;
+				}
 				expr_untoken(op);
-				break;
+				value = expr_lhs[sp];
 			}
-			rhs = expr(pri);
-			// System.out.println("rhs token is " + rhs);
-			switch (op.getType()) {
-				case '/':
-					if (rhs == 0) {
-						error(op, "Division by zero");
-						lhs = 0;
-					} else {
-						lhs = lhs / rhs;
-					}
-					break;
-				case '%':
-					if (rhs == 0) {
-						error(op, "Modulus by zero");
-						lhs = 0;
-					} else {
-						lhs = lhs % rhs;
-					}
-					break;
-				case '*':
-					lhs = lhs * rhs;
-					break;
-				case '+':
-					lhs = lhs + rhs;
-					break;
-				case '-':
-					lhs = lhs - rhs;
-					break;
-				case '<':
-					lhs = lhs < rhs ? 1 : 0;
-					break;
-				case '>':
-					lhs = lhs > rhs ? 1 : 0;
-					break;
-				case '&':
-					lhs = lhs & rhs;
-					break;
-				case '^':
-					lhs = lhs ^ rhs;
-					break;
-				case '|':
-					lhs = lhs | rhs;
-					break;
 
-				case LSH:
-					lhs = lhs << rhs;
-					break;
-				case RSH:
-					lhs = lhs >> rhs;
-					break;
-				case LE:
-					lhs = lhs <= rhs ? 1 : 0;
-					break;
-				case GE:
-					lhs = lhs >= rhs ? 1 : 0;
-					break;
-				case EQ:
-					lhs = lhs == rhs ? 1 : 0;
-					break;
-				case NE:
-					lhs = lhs != rhs ? 1 : 0;
-					break;
-				case LAND:
-					lhs = (lhs != 0) && (rhs != 0) ? 1 : 0;
-					break;
-				case LOR:
-					lhs = (lhs != 0) || (rhs != 0) ? 1 : 0;
-					break;
-
-				case '?': {
-					tok = expr_token();
-					if (tok.getType() != ':') {
-						expr_untoken(tok);
-						error(tok, "Missing : in conditional expression. Got " + tok.getText());
-						return 0;
+			/* Pass the value of the finished operand down until a frame continues. */
+			operand = false;
+			while (true) {
+				if (sp-- == 0)
+					return value;
+				switch (expr_cont[sp]) {
+					case EXPR_PAREN: {
+						Token tok = expr_token();
+						if (tok.getType() != ')') {
+							expr_untoken(tok);
+							expr_error(tok, "Missing ) in expression. Got " + tok.getText());
+							value = 0;
+							continue;
+						}
+						expr_lhs[sp] = value;
+						break;
+					}
+					case EXPR_COMPL:
+						expr_lhs[sp] = ~value;
+						break;
+					case EXPR_NOT:
+						expr_lhs[sp] = value == 0 ? 1 : 0;
+						break;
+					case EXPR_NEG:
+						expr_lhs[sp] = -value;
+						break;
+					case EXPR_TERNARY:
+						expr_lhs[sp] = (expr_lhs[sp] != 0) ? expr_rhs[sp] : value;
+						break;
+					default: {
+						Token op = expr_op[sp];
+						expr_op[sp] = null;
+						if (op.getType() == '?') {
+							Token tok = expr_token();
+							if (tok.getType() != ':') {
+								expr_untoken(tok);
+								expr_error(tok, "Missing : in conditional expression. Got " + tok.getText());
+								value = 0;
+								continue;
+							}
+							/* The false result is parsed like a parenthesized expression. */
+							expr_cont[sp] = EXPR_TERNARY;
+							expr_rhs[sp] = value;
+							sp = expr_push(sp, 0);
+							operand = true;
+							break;
+						}
+						expr_lhs[sp] = expr_binary(op, expr_lhs[sp], value);
+						break;
 					}
-					long falseResult = expr(0);
-					lhs = (lhs != 0) ? rhs : falseResult;
 				}
 				break;
-
-				default:
-					error(op,
-							"Unexpected operator " + op.getText());
-					return 0;
-
 			}
 		}
+	}
 
-		/*
-		 * (new Exception("expr returning " + lhs)).printStackTrace();
-		 */
-		// System.out.println("expr returning " + lhs);
-		return lhs;
+	private long expr_binary(@NonNull Token op, long lhs, long rhs) {
+		switch (op.getType()) {
+			case '/':
+				if (rhs == 0) {
+					error(op, "Division by zero");
+					return 0;
+				}
+				return lhs / rhs;
+			case '%':
+				if (rhs == 0) {
+					error(op, "Modulus by zero");
+					return 0;
+				}
+				return lhs % rhs;
+			case '*':
+				return lhs * rhs;
+			case '+':
+				return lhs + rhs;
+			case '-':
+				return lhs - rhs;
+			case '<':
+				return lhs < rhs ? 1 : 0;
+			case '>':
+				return lhs > rhs ? 1 : 0;
+			case '&':
+				return lhs & rhs;
+			case '^':
+				return lhs ^ rhs;
+			case '|':
+				return lhs | rhs;
+			case LSH:
+				return lhs << rhs;
+			case RSH:
+				return lhs >> rhs;
+			case LE:
+				return lhs <= rhs ? 1 : 0;
+			case GE:
+				return lhs >= rhs ? 1 : 0;
+			case EQ:
+				return lhs == rhs ? 1 : 0;
+			case NE:
+				return lhs != rhs ? 1 : 0;
+			case LAND:
+				return (lhs != 0) && (rhs != 0) ? 1 : 0;
+			case LOR:
+				return (lhs != 0) || (rhs != 0) ? 1 : 0;
+			default:
+				error(op,
+						"Unexpected operator " + op.getText());
+				return 0;
+		}
 	}
 
-	@NonNull
-	private Token toWhitespace(@NonNull Token tok) {
-		String text = tok.getText();
+	/**
+	 * Returns the number of line separators in the given text,
+	 * counting CR LF as one.
+	 */
+	static int countNewlines(@NonNull String text) {
 		int len = text.length();
 		boolean cr = false;
 		int nls = 0;
@@ -1572,12 +1904,56 @@ public class Preprocessor implements Closeable {
 					break;
 			}
 		}
+		return nls;
+	}
 
-		char[] cbuf = new char[nls];
-		Arrays.fill(cbuf, '\n');
+	static void appendNewlines(@NonNull String text, @NonNull StringBuilder out) {
+		for (int nls = countNewlines(text); nls > 0; nls--)
+			out.append('\n');
+	}
+
+	/* Short runs of newlines, spaces and tabs share their text instead of allocating it per token. */
+	private static final String[] NEWLINES = new String[33];
+	private static final String[] SPACES = new String[33];
+	private static final String[] TABS = new String[33];
+
+	static {
+		for (int i = 0; i < NEWLINES.length; i++) {
+			NEWLINES[i] = "\n".repeat(i);
+			SPACES[i] = " ".repeat(i);
+			TABS[i] = "\t".repeat(i);
+		}
+	}
+
+	/**
+	 * Returns a string of the given number of newlines.
+	 */
+	@NonNull
+	static String newlines(int count) {
+		return count < NEWLINES.length ? NEWLINES[count] : "\n".repeat(count);
+	}
+
+	/**
+	 * Returns a string of the given number of spaces.
+	 */
+	@NonNull
+	static String spaces(int count) {
+		return count < SPACES.length ? SPACES[count] : " ".repeat(count);
+	}
+
+	/**
+	 * Returns a string of the given number of tabs.
+	 */
+	@NonNull
+	static String tabs(int count) {
+		return count < TABS.length ? TABS[count] : "\t".repeat(count);
+	}
+
+	@NonNull
+	private Token toWhitespace(@NonNull Token tok) {
 		return new Token(WHITESPACE,
 				tok.getLine(), tok.getColumn(),
-				new String(cbuf));
+				newlines(countNewlines(tok.getText())));
 	}
 
 	@NonNull
@@ -1593,6 +1969,13 @@ public class Preprocessor implements Closeable {
 					return t;
 				}
 
+				/* Skip to the next directive without lexing if possible. */
+				if (source_token == null && !getFeature(Feature.KEEP_ALL_COMMENTS)) {
+					tok = s.skipInactive();
+					if (tok != null)
+						return tok;
+				}
+
 				try {
 					/* XXX Tell lexer to ignore warnings. */
 					s.setActive(false);
@@ -1706,10 +2089,10 @@ public class Preprocessor implements Closeable {
 					return tok;
 
 				case IDENTIFIER:
-					Macro m = getMacro(tok.getText());
+					Macro m = lookup(tok);
 					if (m == null)
 						return tok;
-					if (source.isExpanding(m))
+					if (isExpanding(m))
 						return tok;
 					if (macro(m, tok))
 						break;
@@ -1800,51 +2183,37 @@ public class Preprocessor implements Closeable {
 							if (!isActive()) {
 								return source_skipline(false);
 							}
-							expr_token = null;
-							states.peek().setActive(expr(0) != 0);
-							tok = expr_token(); /* unget */
-
-							if (tok.getType() == NL)
-								return tok;
-							return source_skipline(true);
+							return condition();
 
 						case PP_ELIF:
-							State state = states.peek();
-							if (state.sawElse()) {
+							if (states.sawElse()) {
 								error(tok,
 										"#elif after #" + "else");
 								return source_skipline(false);
-							} else if (!state.isParentActive()) {
+							} else if (!states.isParentActive()) {
 								/* Nested in skipped 'if' */
 								return source_skipline(false);
-							} else if (state.isActive()) {
+							} else if (states.isActive()) {
 								/* The 'if' part got executed. */
-								state.setParentActive(false);
+								states.setParentActive(false);
 								/*
 								 * This is like # else # if but with
 								 * only one # end.
 								 */
-								state.setActive(false);
+								states.setActive(false);
 								return source_skipline(false);
 							} else {
-								expr_token = null;
-								state.setActive(expr(0) != 0);
-								tok = expr_token(); /* unget */
-
-								if (tok.getType() == NL)
-									return tok;
-								return source_skipline(true);
+								return condition();
 							}
 
 						case PP_ELSE:
-							state = states.peek();
-							if (state.sawElse()) {
+							if (states.sawElse()) {
 								error(tok,
 										"#" + "else after #" + "else");
 								return source_skipline(false);
 							} else {
-								state.setSawElse();
-								state.setActive(!state.isActive());
+								states.setSawElse();
+								states.setActive(!states.isActive());
 								return source_skipline(warnings.contains(Warning.ENDIF_LABELS));
 							}
 
@@ -1861,9 +2230,8 @@ public class Preprocessor implements Closeable {
 													+ tok.getText());
 									return source_skipline(false);
 								} else {
-									String text = tok.getText();
-									boolean exists = macros.containsKey(text);
-									states.peek().setActive(exists);
+									boolean exists = lookup(tok) != null;
+									states.setActive(exists);
 									return source_skipline(true);
 								}
 							}
@@ -1880,9 +2248,8 @@ public class Preprocessor implements Closeable {
 													+ tok.getText());
 									return source_skipline(false);
 								} else {
-									String text = tok.getText();
-									boolean exists = macros.containsKey(text);
-									states.peek().setActive(!exists);
+									boolean exists = lookup(tok) != null;
+									states.setActive(!exists);
 									return source_skipline(true);
 								}
 							}
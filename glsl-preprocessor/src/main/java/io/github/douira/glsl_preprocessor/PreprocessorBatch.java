@@ -0,0 +1,236 @@
+package io.github.douira.glsl_preprocessor;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.github.douira.glsl_preprocessor.fs.VirtualFile;
+import io.github.douira.glsl_preprocessor.fs.VirtualFileSystem;
+
+/**
+ * Preprocesses many sources concurrently.
+ *
+ * Every source is preprocessed by its own Preprocessor, which starts
+ * from a shared base macro environment and reads from a shared file
+ * system. The file system must support concurrent reads. Lexed include
+ * files and results can be shared between the jobs through an
+ * {@link IncludeCache} and a {@link PreprocessorResultCache}.
+ *
+ * The results are returned in the order of the jobs, each with the
+ * diagnostics reported while preprocessing it. A job which throws only
+ * fails its own result.
+ */
+public class PreprocessorBatch {
+	/**
+	 * A source to preprocess.
+	 *
+	 * @param name    The name of the source.
+	 * @param content The text of the source.
+	 */
+	public record Job(@NonNull String name, @NonNull String content) {
+	}
+
+	/**
+	 * A warning or error reported while preprocessing a job.
+	 *
+	 * @param error   true for errors, false for warnings.
+	 * @param source  The name of the source the diagnostic was reported in.
+	 * @param line    The line number.
+	 * @param column  The column number.
+	 * @param message The message.
+	 */
+	public record Diagnostic(boolean error, @CheckForNull String source, int line, int column,
+			@NonNull String message) {
+		@Override
+		public String toString() {
+			return source + ":" + line + ":" + column + ": "
+					+ (error ? "error: " : "warning: ") + message;
+		}
+	}
+
+	/**
+	 * The outcome of a job.
+	 *
+	 * @param job         The job.
+	 * @param output      The preprocessed text, or the empty string if the
+	 *                    job failed.
+	 * @param includes    The names of the included files, in order of inclusion.
+	 * @param diagnostics The warnings and errors reported for the job.
+	 * @param failure     The exception the job failed with, or null.
+	 */
+	public record Result(@NonNull Job job, @NonNull String output, @NonNull List<String> includes,
+			@NonNull List<Diagnostic> diagnostics, @CheckForNull RuntimeException failure) {
+		public boolean hasErrors() {
+			if (failure != null)
+				return true;
+			for (Diagnostic diagnostic : diagnostics)
+				if (diagnostic.error())
+					return true;
+			return false;
+		}
+	}
+
+	private final VirtualFileSystem fileSystem;
+	private final MacroSnapshot base;
+	private final Set<Feature> features = EnumSet.noneOf(Feature.class);
+	private final Set<Warning> warnings = EnumSet.noneOf(Warning.class);
+	private Executor executor = ForkJoinPool.commonPool();
+	private IncludeCache includeCache = null;
+	private PreprocessorResultCache resultCache = null;
+
+	/**
+	 * Creates a new PreprocessorBatch.
+	 *
+	 * @param fileSystem The file system included files are read from.
+	 * @param base       The macro environment every job starts with, or
+	 *                   null to start with only the builtin macros.
+	 */
+	public PreprocessorBatch(@NonNull VirtualFileSystem fileSystem, @CheckForNull MacroSnapshot base) {
+		this.fileSystem = fileSystem;
+		this.base = base;
+	}
+
+	public PreprocessorBatch(@NonNull VirtualFileSystem fileSystem) {
+		this(fileSystem, null);
+	}
+
+	/**
+	 * Sets the executor the jobs are run on. The default is the
+	 * common {@link ForkJoinPool}.
+	 */
+	public void setExecutor(@NonNull Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the cache for lexed include files shared by all jobs.
+	 */
+	public void setIncludeCache(@CheckForNull IncludeCache includeCache) {
+		this.includeCache = includeCache;
+	}
+
+	/**
+	 * Sets the cache which results are looked up in and stored to.
+	 */
+	public void setResultCache(@CheckForNull PreprocessorResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * Returns the feature-set of the Preprocessors of the jobs.
+	 *
+	 * This set may be freely modified by user code.
+	 */
+	@NonNull
+	public Set<Feature> getFeatures() {
+		return features;
+	}
+
+	/**
+	 * Adds a feature to the feature-set of the Preprocessors of the jobs.
+	 */
+	public void addFeature(@NonNull Feature f) {
+		features.add(f);
+	}
+
+	/**
+	 * Returns the warning-set of the Preprocessors of the jobs.
+	 *
+	 * This set may be freely modified by user code.
+	 */
+	@NonNull
+	public Set<Warning> getWarnings() {
+		return warnings;
+	}
+
+	/**
+	 * Adds a warning to the warning-set of the Preprocessors of the jobs.
+	 */
+	public void addWarning(@NonNull Warning w) {
+		warnings.add(w);
+	}
+
+	/**
+	 * Preprocesses all jobs and waits for them to finish.
+	 *
+	 * Exceptions thrown by a job, such as for an unreadable file, are
+	 * returned as the {@link Result#failure() failure} of its result.
+	 *
+	 * @return the results in the order of the jobs.
+	 */
+	@NonNull
+	public List<Result> run(@NonNull List<Job> jobs) {
+		/* Jobs only read the settings, so they get their own copies. */
+		Set<Feature> features = EnumSet.noneOf(Feature.class);
+		features.addAll(this.features);
+		Set<Warning> warnings = EnumSet.noneOf(Warning.class);
+		warnings.addAll(this.warnings);
+
+		List<CompletableFuture<Result>> futures = new ArrayList<>(jobs.size());
+		for (Job job : jobs)
+			futures.add(CompletableFuture.supplyAsync(() -> run(job, features, warnings), executor));
+
+		List<Result> results = new ArrayList<>(jobs.size());
+		for (CompletableFuture<Result> future : futures)
+			results.add(future.join());
+		return results;
+	}
+
+	@NonNull
+	private Result run(@NonNull Job job, @NonNull Set<Feature> features, @NonNull Set<Warning> warnings) {
+		List<Diagnostic> diagnostics = new ArrayList<>();
+		try {
+			return preprocess(job, features, warnings, diagnostics);
+		} catch (RuntimeException e) {
+			return new Result(job, "", List.of(), List.copyOf(diagnostics), e);
+		}
+	}
+
+	@NonNull
+	private Result preprocess(@NonNull Job job, @NonNull Set<Feature> features, @NonNull Set<Warning> warnings,
+			@NonNull List<Diagnostic> diagnostics) {
+		Preprocessor pp = base == null ? new Preprocessor() : new Preprocessor(base);
+		pp.setFileSystem(fileSystem);
+		pp.setIncludeCache(includeCache);
+		pp.addFeatures(features);
+		pp.addWarnings(warnings);
+		pp.setListener(new PreprocessorListener() {
+			@Override
+			public void handleWarning(@NonNull Source source, int line, int column, @NonNull String msg) {
+				diagnostics.add(new Diagnostic(false, name(source), line, column, msg));
+			}
+
+			@Override
+			public void handleError(@NonNull Source source, int line, int column, @NonNull String msg) {
+				diagnostics.add(new Diagnostic(true, name(source), line, column, msg));
+			}
+
+			@Override
+			public void handleSourceChange(@NonNull Source source, @NonNull SourceChangeEvent event) {
+			}
+		});
+
+		if (resultCache != null) {
+			PreprocessorResultCache.Result result = resultCache.preprocess(pp, job.name(), job.content());
+			return new Result(job, result.output(), result.includes(), List.copyOf(diagnostics), null);
+		}
+
+		pp.addInput(new StringLexerSource(job.content(), job.name(), true));
+		String output;
+		try {
+			output = pp.printToString();
+		} finally {
+			pp.close();
+		}
+		List<String> includes = new ArrayList<>();
+		for (VirtualFile file : pp.getIncludes())
+			includes.add(file.getName());
+		return new Result(job, output, Collections.unmodifiableList(includes), List.copyOf(diagnostics), null);
+	}
+
+	@CheckForNull
+	private static String name(@CheckForNull Source source) {
+		return source == null ? null : source.getName();
+	}
+}
@@ -5,6 +5,9 @@
  */
 package io.github.douira.glsl_preprocessor;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import edu.umd.cs.findbugs.annotations.*;
 
 /**
@@ -32,6 +35,13 @@ public enum PreprocessorCommand {
 	PP_CUSTOM("custom"),
 	PP_VERSION("version");
 
+	private static final Map<String, PreprocessorCommand> BY_TEXT = new HashMap<>();
+
+	static {
+		for (PreprocessorCommand ppcmd : values())
+			BY_TEXT.put(ppcmd.text, ppcmd);
+	}
+
 	private final String text;
 
 	PreprocessorCommand(String text) {
@@ -40,9 +50,6 @@ public enum PreprocessorCommand {
 
 	@CheckForNull
 	public static PreprocessorCommand forText(@NonNull String text) {
-		for (PreprocessorCommand ppcmd : PreprocessorCommand.values())
-			if (ppcmd.text.equals(text))
-				return ppcmd;
-		return null;
+		return BY_TEXT.get(text);
 	}
 }
@@ -0,0 +1,405 @@
+package io.github.douira.glsl_preprocessor;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.github.douira.glsl_preprocessor.fs.VirtualFile;
+import io.github.douira.glsl_preprocessor.fs.VirtualFileSystem;
+
+/**
+ * A cache of complete preprocessing results.
+ *
+ * A result is reused for a source whenever everything it depended on is
+ * unchanged: the content of the source and of the files it included, the
+ * features and warnings of the Preprocessor, the files it already saw with
+ * <code>#pragma once</code>, and the definitions of the macros which were
+ * looked up while preprocessing it (see
+ * {@link Preprocessor#getMacroDependencies()}). Macros which the source
+ * never looked at may change freely without invalidating the result.
+ *
+ * Includes are resolved again by the file system of the Preprocessor, the
+ * same way the run resolved them, and must resolve to the same files with
+ * the same content. Included files must provide their content through
+ * {@link VirtualFile#getContent()}. Runs which reported warnings or errors,
+ * included files without content or used <code>__COUNTER__</code> are not
+ * cached. Source change events aren't replayed for cached results.
+ *
+ * Sources are compared by their text, and included files by a SHA-256
+ * digest of their content. The cache is bounded by the total length of the
+ * cached sources and outputs and evicts the least recently used sources
+ * first.
+ */
+public class PreprocessorResultCache {
+	public static final int DEFAULT_MAX_CHARS = 1 << 24;
+	private static final int DIGEST_LENGTH = 32;
+
+	/**
+	 * The output of preprocessing a source and its metadata.
+	 *
+	 * @param output            The preprocessed text.
+	 * @param includes          The names of the included files, in order of inclusion.
+	 * @param sourceNumbers     The source numbers used in line markers.
+	 * @param macroDependencies The names of the macros the output depends on.
+	 */
+	public record Result(
+			@NonNull String output,
+			@NonNull List<String> includes,
+			@NonNull Map<String, Integer> sourceNumbers,
+			@NonNull Set<String> macroDependencies) {
+	}
+
+	private record Key(String name, String content, Set<Feature> features, Set<Warning> warnings,
+			Set<String> onceSeenPaths) {
+	}
+
+	/* An include as the run resolved it, with the name of the including source. */
+	private record Include(String parent, String path, boolean quoted, boolean next) {
+	}
+
+	private record Dependencies(
+			String[] macros, String[] definitions,
+			Include[] includes, String[] files, byte[][] digests) {
+	}
+
+	private record Entry(Dependencies dependencies, Result result) {
+	}
+
+	private final int maxChars;
+	/* Sources with the same key may have several results for different macro definitions. */
+	private final Map<Key, List<Entry>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private int chars = 0;
+	private int size = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public PreprocessorResultCache() {
+		this(DEFAULT_MAX_CHARS);
+	}
+
+	/**
+	 * Creates a new PreprocessorResultCache.
+	 *
+	 * @param maxChars The maximum total length of the sources and outputs
+	 *                 held by the cache.
+	 */
+	public PreprocessorResultCache(int maxChars) {
+		if (maxChars < 0)
+			throw new IllegalArgumentException("Negative maximum char count: " + maxChars);
+		this.maxChars = maxChars;
+	}
+
+	/**
+	 * Preprocesses the given source, or returns the cached result if none
+	 * of its dependencies changed.
+	 *
+	 * The Preprocessor must be configured with its macros, features, file
+	 * system and listener, but not have any input yet. It is used up by
+	 * this method.
+	 *
+	 * @param pp      The Preprocessor to preprocess the source with.
+	 * @param name    The name of the source.
+	 * @param content The text of the source.
+	 * @return the preprocessed text and its metadata.
+	 */
+	@NonNull
+	public Result preprocess(@NonNull Preprocessor pp, @NonNull String name, @NonNull String content) {
+		Set<Feature> features = EnumSet.noneOf(Feature.class);
+		features.addAll(pp.getFeatures());
+		features.remove(Feature.MACRO_DEPENDENCIES);
+		Set<Warning> warnings = EnumSet.noneOf(Warning.class);
+		warnings.addAll(pp.getWarnings());
+		/* The definitions the run depends on are those from before it. */
+		MacroSnapshot before = pp.snapshot();
+		Key key = new Key(name, content,
+				Collections.unmodifiableSet(features), Collections.unmodifiableSet(warnings),
+				before.getOnceSeenPaths());
+
+		Result result = get(key, pp);
+		if (result != null)
+			return result;
+
+		DiagnosticListener listener = new DiagnosticListener(pp.getListener());
+		pp.setListener(listener);
+		RecordingFileSystem fileSystem = new RecordingFileSystem(pp.getFileSystem());
+		pp.setFileSystem(fileSystem);
+		pp.addFeature(Feature.MACRO_DEPENDENCIES);
+		pp.addInput(new StringLexerSource(content, name, true));
+		String output;
+		try {
+			output = pp.printToString();
+		} finally {
+			pp.close();
+		}
+
+		List<String> includes = new ArrayList<>();
+		for (VirtualFile file : pp.getIncludes())
+			includes.add(file.getName());
+		Set<String> macroDependencies = pp.getMacroDependencies();
+		result = new Result(output,
+				Collections.unmodifiableList(includes),
+				Collections.unmodifiableMap(new HashMap<>(pp.getSourceNumbers())),
+				Collections.unmodifiableSet(new LinkedHashSet<>(macroDependencies)));
+		if (listener.diagnostics == 0 && !macroDependencies.contains("__COUNTER__")) {
+			Dependencies dependencies = dependencies(before, fileSystem.includes, fileSystem.files, macroDependencies);
+			if (dependencies != null)
+				put(key, new Entry(dependencies, result));
+		}
+		return result;
+	}
+
+	@CheckForNull
+	private static Dependencies dependencies(@NonNull MacroSnapshot before,
+			@NonNull List<Include> includes, @NonNull List<VirtualFile> includedFiles,
+			@NonNull Set<String> macroDependencies) {
+		Map<String, Macro> definitions = before.getMacros();
+		String[] macros = macroDependencies.toArray(new String[0]);
+		String[] values = new String[macros.length];
+		for (int i = 0; i < macros.length; i++)
+			values[i] = definition(definitions.get(macros[i]));
+
+		String[] files = new String[includes.size()];
+		byte[][] digests = new byte[files.length][];
+		for (int i = 0; i < files.length; i++) {
+			VirtualFile file = includedFiles.get(i);
+			String content = file.isFile() ? file.getContent() : null;
+			if (content == null)
+				return null;
+			files[i] = file.getName();
+			digests[i] = digest(content);
+		}
+		return new Dependencies(macros, values, includes.toArray(new Include[0]), files, digests);
+	}
+
+	@CheckForNull
+	private static String definition(@CheckForNull Macro m) {
+		return m == null ? null : m.toString();
+	}
+
+	/* Checking the dependencies happens outside the lock, entries are immutable. */
+	@CheckForNull
+	private Result get(@NonNull Key key, @NonNull Preprocessor pp) {
+		List<Entry> candidates;
+		synchronized (this) {
+			candidates = entries.get(key);
+			candidates = candidates == null ? List.of() : List.copyOf(candidates);
+		}
+		for (Entry entry : candidates) {
+			if (matches(entry.dependencies(), pp)) {
+				synchronized (this) {
+					hits++;
+				}
+				return entry.result();
+			}
+		}
+		synchronized (this) {
+			misses++;
+		}
+		return null;
+	}
+
+	private static boolean matches(@NonNull Dependencies dependencies, @NonNull Preprocessor pp) {
+		String[] macros = dependencies.macros();
+		String[] definitions = dependencies.definitions();
+		for (int i = 0; i < macros.length; i++)
+			if (!Objects.equals(definitions[i], definition(pp.getMacro(macros[i]))))
+				return false;
+
+		VirtualFileSystem fileSystem = pp.getFileSystem();
+		Include[] includes = dependencies.includes();
+		String[] files = dependencies.files();
+		byte[][] digests = dependencies.digests();
+		for (int i = 0; i < includes.length; i++) {
+			Include include = includes[i];
+			String content;
+			try {
+				VirtualFile file = fileSystem.getFile(new ParentSource(include.parent()), include.path(),
+						include.quoted(), include.next());
+				content = file.isFile() && files[i].equals(file.getName()) ? file.getContent() : null;
+			} catch (RuntimeException e) {
+				return false;
+			}
+			if (content == null || !MessageDigest.isEqual(digest(content), digests[i]))
+				return false;
+		}
+		return true;
+	}
+
+	private synchronized void put(@NonNull Key key, @NonNull Entry entry) {
+		List<Entry> list = entries.get(key);
+		if (list == null) {
+			list = new ArrayList<>();
+			entries.put(key, list);
+			/* The source is held once for all results of the key. */
+			chars += key.content().length();
+		}
+		list.add(entry);
+		chars += weight(entry);
+		size++;
+		Iterator<Map.Entry<Key, List<Entry>>> it = entries.entrySet().iterator();
+		while (chars > maxChars && it.hasNext()) {
+			Map.Entry<Key, List<Entry>> evicted = it.next();
+			chars -= evicted.getKey().content().length();
+			for (Entry e : evicted.getValue())
+				chars -= weight(e);
+			size -= evicted.getValue().size();
+			evictions += evicted.getValue().size();
+			it.remove();
+		}
+	}
+
+	/* Digests are counted as the chars they take up. */
+	private static int weight(@NonNull Entry entry) {
+		return Math.max(entry.result().output().length(), 1)
+				+ entry.dependencies().digests().length * DIGEST_LENGTH / 2;
+	}
+
+	/* SHA-256 over the UTF-16 code units of the text, so that no two texts are encoded alike. */
+	@NonNull
+	private static byte[] digest(@NonNull String text) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			/* Every Java platform must support SHA-256. */
+			throw new IllegalStateException(e);
+		}
+		byte[] buf = new byte[Math.min(text.length(), 4096) * 2];
+		for (int i = 0; i < text.length();) {
+			int n = 0;
+			for (; n < buf.length && i < text.length(); i++) {
+				char c = text.charAt(i);
+				buf[n++] = (byte) (c >> 8);
+				buf[n++] = (byte) c;
+			}
+			digest.update(buf, 0, n);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Returns the number of results in this cache.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the total length of the sources and outputs held by this
+	 * cache, including what the digests of included files are counted as.
+	 */
+	public synchronized int getCharCount() {
+		return chars;
+	}
+
+	/**
+	 * Returns the number of lookups which returned a cached result.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups which had to preprocess the source.
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of results which were evicted to stay within
+	 * the size limit.
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Removes all results from this cache. The statistics are kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		chars = 0;
+		size = 0;
+	}
+
+	/* Records how the includes of a run are resolved. */
+	private static class RecordingFileSystem implements VirtualFileSystem {
+		private final VirtualFileSystem delegate;
+		private final List<Include> includes = new ArrayList<>();
+		private final List<VirtualFile> files = new ArrayList<>();
+
+		RecordingFileSystem(@NonNull VirtualFileSystem delegate) {
+			this.delegate = delegate;
+		}
+
+		@NonNull
+		@Override
+		public VirtualFile getFile(@NonNull String path) {
+			return delegate.getFile(path);
+		}
+
+		@NonNull
+		@Override
+		public VirtualFile getFile(@CheckForNull Source parent, @NonNull String path, boolean quoted, boolean next) {
+			VirtualFile file = delegate.getFile(parent, path, quoted, next);
+			includes.add(new Include(parent == null ? null : parent.getName(), path, quoted, next));
+			files.add(file);
+			return file;
+		}
+	}
+
+	/* Stands in for an including source when resolving its includes again. */
+	private static class ParentSource extends Source {
+		private final String name;
+
+		ParentSource(@CheckForNull String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Token token() {
+			throw new LexerException("Cannot read from " + name);
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+
+	/* Counts the diagnostics of a run, which makes it uncacheable. */
+	private static class DiagnosticListener implements PreprocessorListener {
+		private final PreprocessorListener delegate;
+		private int diagnostics = 0;
+
+		DiagnosticListener(@CheckForNull PreprocessorListener delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void handleWarning(@NonNull Source source, int line, int column, @NonNull String msg) {
+			diagnostics++;
+			if (delegate == null)
+				throw new LexerException("Warning at " + line + ":" + column + ": " + msg);
+			delegate.handleWarning(source, line, column, msg);
+		}
+
+		@Override
+		public void handleError(@NonNull Source source, int line, int column, @NonNull String msg) {
+			diagnostics++;
+			if (delegate == null)
+				throw new LexerException("Error at " + line + ":" + column + ": " + msg);
+			delegate.handleError(source, line, column, msg);
+		}
+
+		@Override
+		public void handleSourceChange(@NonNull Source source, @NonNull SourceChangeEvent event) {
+			if (delegate != null)
+				delegate.handleSourceChange(source, event);
+		}
+	}
+}
@@ -165,18 +165,6 @@ public abstract class Source implements Iterable<Token>, Closeable {
 		return parent.getColumn();
 	}
 
-	/**
-	 * Returns true if this Source is expanding the given macro.
-	 *
-	 * This is used to prevent macro recursion.
-	 */
-	boolean isExpanding(@NonNull Macro m) {
-		Source parent = getParent();
-		if (parent != null)
-			return parent.isExpanding(m);
-		return false;
-	}
-
 	/**
 	 * Returns true if this Source should be transparently popped
 	 * from the input stack.
@@ -194,6 +182,15 @@ public abstract class Source implements Iterable<Token>, Closeable {
 		return false;
 	}
 
+	/**
+	 * Tells this Source that the remainder of the current line
+	 * is the target of an include directive.
+	 *
+	 * Sources that don't lex their input ignore this.
+	 */
+	void setInclude(boolean b) {
+	}
+
 	/*
 	 * This is an incredibly lazy way of disabling warnings when
 	 * the source is not active.
@@ -263,6 +260,22 @@ public abstract class Source implements Iterable<Token>, Closeable {
 		}
 	}
 
+	/**
+	 * Skips text in an inactive conditional block up to the next
+	 * preprocessor directive or the end of input, without lexing it.
+	 *
+	 * The returned token contains exactly the whitespace the
+	 * Preprocessor would have output for the skipped text. It is of
+	 * type NL if that consists only of newlines and WHITESPACE otherwise.
+	 *
+	 * @return the token, or null if nothing was skipped or if this
+	 *         Source doesn't support skipping.
+	 */
+	@CheckForNull
+	Token skipInactive() {
+		return null;
+	}
+
 	protected void error(int line, int column, String msg) {
 		if (listener != null)
 			listener.handleError(this, line, column, msg);
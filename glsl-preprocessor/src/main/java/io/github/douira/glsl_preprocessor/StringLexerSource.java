@@ -18,8 +18,6 @@
  */
 package io.github.douira.glsl_preprocessor;
 
-import java.io.StringReader;
-
 /**
  * A Source for lexing a String.
  *
@@ -39,7 +37,7 @@ public class StringLexerSource extends LexerSource {
 	 *                honoured within the string.
 	 */
 	public StringLexerSource(String string, String name, boolean ppvalid) {
-		super(new StringReader(string), ppvalid);
+		super(string, ppvalid);
 		this.name = name;
 	}
 
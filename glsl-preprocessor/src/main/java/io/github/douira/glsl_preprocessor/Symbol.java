@@ -0,0 +1,44 @@
+package io.github.douira.glsl_preprocessor;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * An interned identifier.
+ *
+ * There is exactly one Symbol for every distinct identifier text,
+ * obtained from the {@link SymbolTable}. Per-Preprocessor information
+ * about an identifier, like the macro it names, is kept in a
+ * {@link SymbolMap}, which hashes symbols by their id.
+ */
+final class Symbol {
+	private final String text;
+	private final int hash;
+	private final int id;
+
+	Symbol(@NonNull String text, int hash, int id) {
+		this.text = text;
+		this.hash = hash;
+		this.id = id;
+	}
+
+	@NonNull
+	String getText() {
+		return text;
+	}
+
+	/**
+	 * Returns the hash of the text, which is the same as its {@link String#hashCode()}.
+	 */
+	int getHash() {
+		return hash;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,141 @@
+package io.github.douira.glsl_preprocessor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * A map from {@link Symbol Symbols} to values, for information a
+ * Preprocessor keeps about identifiers.
+ *
+ * Its size depends on the number of entries and not on how many symbols
+ * exist, which grows with every identifier the process has ever lexed.
+ * Symbols are compared by identity and hashed by their id, so lookups
+ * never look at the text.
+ */
+final class SymbolMap<V> {
+	/* Open addressing with linear probing. The capacity is a power of two and at least twice the size. */
+	private Symbol[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	SymbolMap() {
+		this(16);
+	}
+
+	private SymbolMap(int capacity) {
+		this.keys = new Symbol[capacity];
+		this.values = new Object[capacity];
+	}
+
+	/**
+	 * Returns a copy of this map.
+	 */
+	@NonNull
+	SymbolMap<V> copy() {
+		SymbolMap<V> copy = new SymbolMap<>(0);
+		copy.keys = keys.clone();
+		copy.values = values.clone();
+		copy.size = size;
+		return copy;
+	}
+
+	private static int slot(@NonNull Symbol symbol, int mask) {
+		int hash = symbol.getId() * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	@CheckForNull
+	@SuppressWarnings("unchecked")
+	V get(@NonNull Symbol symbol) {
+		Symbol[] k = keys;
+		int mask = k.length - 1;
+		for (int i = slot(symbol, mask);; i = (i + 1) & mask) {
+			Symbol key = k[i];
+			if (key == symbol)
+				return (V) values[i];
+			if (key == null)
+				return null;
+		}
+	}
+
+	@CheckForNull
+	@SuppressWarnings("unchecked")
+	V put(@NonNull Symbol symbol, @NonNull V value) {
+		int mask = keys.length - 1;
+		int i = slot(symbol, mask);
+		for (; keys[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == symbol) {
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+		keys[i] = symbol;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	@CheckForNull
+	@SuppressWarnings("unchecked")
+	V remove(@NonNull Symbol symbol) {
+		int mask = keys.length - 1;
+		int i = slot(symbol, mask);
+		for (; keys[i] != symbol; i = (i + 1) & mask)
+			if (keys[i] == null)
+				return null;
+		V previous = (V) values[i];
+		/* Moves later entries of the probe sequence back into the hole. */
+		for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+			int home = slot(keys[j], mask);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		keys[i] = null;
+		values[i] = null;
+		size--;
+		return previous;
+	}
+
+	private void resize(int capacity) {
+		Symbol[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new Symbol[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			Symbol key = oldKeys[j];
+			if (key == null)
+				continue;
+			int i = slot(key, mask);
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = key;
+			values[i] = oldValues[j];
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of slots, which are indexed from 0.
+	 */
+	int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * Returns the value in the given slot, or null if it is empty.
+	 */
+	@CheckForNull
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot) {
+		return (V) values[slot];
+	}
+}
@@ -0,0 +1,146 @@
+package io.github.douira.glsl_preprocessor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The global table of interned identifiers.
+ *
+ * Lookups don't take a lock and identifiers can be looked up directly
+ * from the lexer's character buffer, so lexing an identifier which was
+ * seen before doesn't allocate. Symbols are never removed, so the table
+ * holds every distinct identifier lexed by the process, at the cost of
+ * one Symbol each. Nothing else is sized by the number of symbols.
+ */
+final class SymbolTable {
+	private static final Object LOCK = new Object();
+
+	/* Open addressing with linear probing, replaced as a whole when it grows. */
+	private static volatile Symbol[] table = new Symbol[1 << 12];
+	private static int count = 0;
+
+	private SymbolTable() {
+	}
+
+	private static int slot(int hash, int mask) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Returns the symbol for the given characters, creating it if necessary.
+	 */
+	@NonNull
+	static Symbol intern(@NonNull char[] buf, int off, int len) {
+		int hash = 0;
+		for (int i = off; i < off + len; i++)
+			hash = 31 * hash + buf[i];
+
+		Symbol[] t = table;
+		int mask = t.length - 1;
+		for (int i = slot(hash, mask);; i = (i + 1) & mask) {
+			Symbol symbol = t[i];
+			if (symbol == null)
+				break;
+			if (symbol.getHash() == hash && equals(symbol.getText(), buf, off, len))
+				return symbol;
+		}
+		return insert(new String(buf, off, len), hash);
+	}
+
+	/**
+	 * Returns the symbol for the given part of a text, creating it if necessary.
+	 */
+	@NonNull
+	static Symbol intern(@NonNull String text, int off, int len) {
+		int hash = 0;
+		for (int i = off; i < off + len; i++)
+			hash = 31 * hash + text.charAt(i);
+
+		Symbol[] t = table;
+		int mask = t.length - 1;
+		for (int i = slot(hash, mask);; i = (i + 1) & mask) {
+			Symbol symbol = t[i];
+			if (symbol == null)
+				break;
+			String name = symbol.getText();
+			if (symbol.getHash() == hash && name.length() == len && name.regionMatches(0, text, off, len))
+				return symbol;
+		}
+		return insert(text.substring(off, off + len), hash);
+	}
+
+	/**
+	 * Returns the symbol for the given text, creating it if necessary.
+	 */
+	@NonNull
+	static Symbol intern(@NonNull String text) {
+		Symbol symbol = lookup(text);
+		if (symbol != null)
+			return symbol;
+		return insert(text, text.hashCode());
+	}
+
+	/**
+	 * Returns the symbol for the given text, or null if no such
+	 * symbol was created yet.
+	 */
+	@CheckForNull
+	static Symbol lookup(@NonNull String text) {
+		int hash = text.hashCode();
+		Symbol[] t = table;
+		int mask = t.length - 1;
+		for (int i = slot(hash, mask);; i = (i + 1) & mask) {
+			Symbol symbol = t[i];
+			if (symbol == null)
+				return null;
+			if (symbol.getHash() == hash && symbol.getText().equals(text))
+				return symbol;
+		}
+	}
+
+	private static boolean equals(String text, char[] buf, int off, int len) {
+		if (text.length() != len)
+			return false;
+		for (int i = 0; i < len; i++)
+			if (text.charAt(i) != buf[off + i])
+				return false;
+		return true;
+	}
+
+	@NonNull
+	private static Symbol insert(@NonNull String text, int hash) {
+		synchronized (LOCK) {
+			Symbol[] t = table;
+			int mask = t.length - 1;
+			int i = slot(hash, mask);
+			for (;; i = (i + 1) & mask) {
+				Symbol symbol = t[i];
+				if (symbol == null)
+					break;
+				if (symbol.getHash() == hash && symbol.getText().equals(text))
+					return symbol;
+			}
+			Symbol symbol = new Symbol(text, hash, count++);
+			t[i] = symbol;
+			if (count * 2 > t.length)
+				t = grow(t);
+			/* Publishes the new entry to lookups which don't lock. */
+			table = t;
+			return symbol;
+		}
+	}
+
+	private static Symbol[] grow(Symbol[] t) {
+		Symbol[] grown = new Symbol[t.length * 2];
+		int mask = grown.length - 1;
+		for (Symbol symbol : t) {
+			if (symbol == null)
+				continue;
+			int i = slot(symbol.getHash(), mask);
+			while (grown[i] != null)
+				i = (i + 1) & mask;
+			grown[i] = symbol;
+		}
+		return grown;
+	}
+}
@@ -0,0 +1,72 @@
+package io.github.douira.glsl_preprocessor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Finds the line ends and comment ends in in-memory input that the
+ * lexer jumps to, instead of reading one character at a time up to
+ * them. The searches use String.indexOf, which is an intrinsic that
+ * the JVM vectorizes where the hardware supports it and which works
+ * everywhere else.
+ *
+ * Scanners only exist for text whose only line separator is LF, so
+ * that every line ends at a '\n'.
+ */
+final class TextScanner {
+	private static final char[] OTHER_SEPARATORS = {
+			'\r', '\u2028', '\u2029', '\u000B', '\u000C', '\u0085' };
+
+	private final String text;
+
+	private TextScanner(@NonNull String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Returns a scanner for the given text, or null if it contains line
+	 * separators other than LF.
+	 */
+	@CheckForNull
+	static TextScanner of(@NonNull String text) {
+		for (char c : OTHER_SEPARATORS)
+			if (text.indexOf(c) != -1)
+				return null;
+		return new TextScanner(text);
+	}
+
+	/**
+	 * Returns the index of the next '\n' at or after the given index, or
+	 * the length of the text if there is none.
+	 */
+	int lineEnd(int from) {
+		int end = text.indexOf('\n', from);
+		return end == -1 ? text.length() : end;
+	}
+
+	/**
+	 * Returns the index of the next "*&#47;" at or after the given index,
+	 * or -1 if there is none.
+	 */
+	int commentEnd(int from) {
+		return text.indexOf("*/", from);
+	}
+
+	/**
+	 * Returns the number of '\n' between the given indices.
+	 */
+	int countNewlines(int from, int to) {
+		int count = 0;
+		for (int i = text.indexOf('\n', from); i != -1 && i < to; i = text.indexOf('\n', i + 1))
+			count++;
+		return count;
+	}
+
+	/**
+	 * Returns the text between the given indices.
+	 */
+	@NonNull
+	String substring(int from, int to) {
+		return text.substring(from, to);
+	}
+}
@@ -23,16 +23,23 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 /**
  * A Preprocessor token.
  *
+ * Tokens carry their own position, so the lexer allocates one for every
+ * token it reads. Only the tokens replayed from an {@link IncludeCache}
+ * are shared between runs, along with the text of common whitespace
+ * runs and of punctuators.
+ *
  * @see Preprocessor
  */
 public final class Token {
 
 	// public static final int EOF = -1;
 	private final int type;
-	private int line;
-	private int column;
+	private final int line;
+	private final int column;
 	private final Object value;
 	private final String text;
+	/* The interned identifier, for identifiers lexed by a LexerSource. */
+	private final Symbol symbol;
 
 	public Token(int type, int line, int column,
 			String text, Object value) {
@@ -41,6 +48,16 @@ public final class Token {
 		this.column = column;
 		this.text = text;
 		this.value = value;
+		this.symbol = null;
+	}
+
+	Token(@NonNull Symbol symbol, int line, int column) {
+		this.type = IDENTIFIER;
+		this.line = line;
+		this.column = column;
+		this.text = symbol.getText();
+		this.value = null;
+		this.symbol = symbol;
 	}
 
 	public Token(int type, int line, int column, String text) {
@@ -69,9 +86,12 @@ public final class Token {
 		return type;
 	}
 
-	void setLocation(int line, int column) {
-		this.line = line;
-		this.column = column;
+	/**
+	 * Returns the interned identifier of this token, or null if it isn't
+	 * an identifier or wasn't lexed from source text.
+	 */
+	Symbol getSymbol() {
+		return symbol;
 	}
 
 	/**
@@ -0,0 +1,78 @@
+package io.github.douira.glsl_preprocessor;
+
+import java.util.*;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Turns the text of pasted tokens back into tokens.
+ *
+ * The result of a paste is usually an identifier or a punctuator, which
+ * are recognized directly. Anything else is lexed like before, and the
+ * results are kept in a small cache of recent pastes. Tokens are
+ * immutable, so the same result can be replayed any number of times.
+ */
+final class TokenPaster {
+	private static final int CACHE_SIZE = 256;
+
+	/* The lexed text of every token type with a fixed text. */
+	private static final Map<String, List<Token>> FIXED = new HashMap<>();
+
+	static {
+		for (int type = 0; type <= Token.INVALID; type++) {
+			TokenType tokenType = TokenType.getTokenType(type);
+			if (tokenType == null || tokenType.text() == null || tokenType.text().isEmpty())
+				continue;
+			FIXED.put(tokenType.text(), lex(tokenType.text()));
+		}
+	}
+
+	private final Map<String, List<Token>> cache = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<Token>> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Returns the tokens of the given text, as a {@link StringLexerSource}
+	 * without preprocessor directives would lex them.
+	 */
+	@NonNull
+	List<Token> paste(@NonNull String text) {
+		List<Token> tokens = FIXED.get(text);
+		if (tokens != null)
+			return tokens;
+		if (isIdentifier(text))
+			return List.of(new Token(SymbolTable.intern(text), 1, 0));
+		tokens = cache.get(text);
+		if (tokens == null) {
+			tokens = lex(text);
+			cache.put(text, tokens);
+		}
+		return tokens;
+	}
+
+	/* Identifiers are all the lexer makes of these, including ignorable characters. */
+	private static boolean isIdentifier(@NonNull String text) {
+		if (text.isEmpty() || !Character.isJavaIdentifierStart(text.charAt(0)))
+			return false;
+		for (int i = 1; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (Character.isIdentifierIgnorable(c) || !Character.isJavaIdentifierPart(c))
+				return false;
+		}
+		return true;
+	}
+
+	/* Errors are thrown by the unattached lexer, so only complete results are kept. */
+	@NonNull
+	private static List<Token> lex(@NonNull String text) {
+		List<Token> tokens = new ArrayList<>();
+		try (StringLexerSource sl = new StringLexerSource(text)) {
+			for (Iterator<Token> it = new SourceIterator(sl); it.hasNext();)
+				tokens.add(it.next());
+		}
+		return List.copyOf(tokens);
+	}
+}
@@ -0,0 +1,706 @@
+package io.github.douira.glsl_preprocessor;
+
+import static io.github.douira.glsl_preprocessor.PreprocessorCommand.*;
+import static io.github.douira.glsl_preprocessor.Token.*;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The complete token stream of a file, lexed once so that it can be
+ * replayed any number of times by a {@link TokenizedFileSource}.
+ *
+ * Instances are immutable and may be shared between threads. Tokens
+ * are immutable too, so every replay returns the same instances.
+ *
+ * The lexer returns different tokens for the target of an include
+ * directive than for the same text anywhere else, and whether the
+ * directive is processed at all is only known while preprocessing.
+ * The stream is therefore lexed without include mode, and the tail of
+ * every include line is additionally stored as lexed in include mode.
+ * A replaying source switches to that run when it is told it is
+ * reading an include target.
+ */
+final class TokenizedFile {
+	/**
+	 * Marks content which can't be cached because lexing it produced
+	 * diagnostics. Those must be reported by a live lexer.
+	 */
+	static final TokenizedFile UNCACHEABLE = new Builder().build(0);
+
+	private final Token[] tokens;
+	/* The types of the tokens, for scanning them. */
+	private final int[] types;
+
+	/* The length of the main stream, including the final EOF. */
+	private final int length;
+
+	/*
+	 * For each include line, the main stream index of the first token
+	 * after the directive name, the range of the include mode tokens
+	 * which replace the rest of the line, and the main stream index
+	 * at which to continue afterwards.
+	 */
+	private final int[] runIndex;
+	private final int[] runStart;
+	private final int[] runEnd;
+	private final int[] runResume;
+
+	/*
+	 * The conditional skeleton. For each #if, #ifdef, #ifndef, #elif
+	 * and #else whose block ends within this file, the main stream index
+	 * at which the block starts and the index of the HASH of the directive
+	 * which ends it. Blocks are ordered by their start.
+	 */
+	private final int[] blockStart;
+	private final int[] blockEnd;
+	private final boolean[] blockSkippable;
+	private final boolean[] blockLabels;
+	/* The output of each skipped block, computed when it is first needed. */
+	private final Token[] blockText;
+
+	/*
+	 * The directives which can be replayed in a compiled form. For each
+	 * #define, #include, #include_next, #if and #elif line which ends in
+	 * an NL, the main stream index after the directive name, the index of
+	 * the NL and the compiled directive. Definitions are compiled when
+	 * they are first executed, the others while building the file.
+	 */
+	private final int[] directiveIndex;
+	private final int[] directiveEnd;
+	private final Object[] directiveCode;
+
+	/**
+	 * An include directive with a literal target.
+	 *
+	 * @param name   The name of the included file.
+	 * @param quoted true for a string, false for a header name.
+	 * @param end    The index of the include mode NL ending the directive.
+	 */
+	record Include(@NonNull String name, boolean quoted, int end) {
+	}
+
+	/**
+	 * The expression of an #if or #elif directive.
+	 *
+	 * The tokens are those the Preprocessor reads from the line, up to and
+	 * including the NL. The operands of <code>defined</code> are folded
+	 * into the token which names it, so only the current macros are
+	 * needed to evaluate the expression.
+	 */
+	static final class Condition {
+		final Token[] tokens;
+		/* The identifier tested by each defined, or null. */
+		final Token[] operands;
+		/* The main stream index after each token. */
+		final int[] next;
+
+		private Condition(Token[] tokens, Token[] operands, int[] next) {
+			this.tokens = tokens;
+			this.operands = operands;
+			this.next = next;
+		}
+	}
+
+	private TokenizedFile(Builder b, int length) {
+		this.tokens = Arrays.copyOf(b.tokens, b.size);
+		this.types = Arrays.copyOf(b.types, b.size);
+		this.length = length;
+		this.runIndex = Arrays.copyOf(b.runIndex, b.runs);
+		this.runStart = Arrays.copyOf(b.runStart, b.runs);
+		this.runEnd = Arrays.copyOf(b.runEnd, b.runs);
+		this.runResume = Arrays.copyOf(b.runResume, b.runs);
+
+		/* Directives which have an effect even in inactive blocks. */
+		int[] problems = new int[4];
+		int nproblems = 0;
+		/* #else and #endif lines with labels, which are warned about. */
+		int[] labels = new int[4];
+		int nlabels = 0;
+
+		int[] start = new int[8];
+		int[] end = new int[8];
+		int blocks = 0;
+		/* The innermost open block and whether it saw an #else, per nesting level. */
+		int[] open = new int[8];
+		boolean[] sawElse = new boolean[8];
+		int depth = 0;
+
+		int[] directives = new int[8];
+		int[] directiveEnds = new int[8];
+		Object[] code = new Object[8];
+		int ndirectives = 0;
+
+		for (int i = 0; i < length; i++) {
+			if (types[i] != HASH)
+				continue;
+			int name = nonwhite(i + 1);
+			if (types[name] == NL)
+				continue;
+			if (types[name] != IDENTIFIER) {
+				problems = push(problems, nproblems++, i);
+				continue;
+			}
+			PreprocessorCommand command = PreprocessorCommand.forText(tokens[name].getText());
+			if (command == null) {
+				problems = push(problems, nproblems++, i);
+				continue;
+			}
+			int eol = name;
+			while (types[eol] != NL && types[eol] != EOF)
+				eol++;
+			boolean label = nonwhite(name + 1) != eol;
+
+			if (types[eol] == NL) {
+				Object compiled = switch (command) {
+					case PP_INCLUDE, PP_INCLUDE_NEXT -> include(name + 1);
+					case PP_IF, PP_ELIF -> condition(name + 1, eol);
+					default -> null;
+				};
+				if (compiled != null || command == PP_DEFINE) {
+					if (ndirectives == code.length)
+						code = Arrays.copyOf(code, ndirectives * 2);
+					directives = push(directives, ndirectives, name + 1);
+					directiveEnds = push(directiveEnds, ndirectives, eol);
+					code[ndirectives++] = compiled;
+				}
+				eol++;
+			}
+
+			switch (command) {
+				case PP_IF:
+				case PP_IFDEF:
+				case PP_IFNDEF:
+					if (depth == open.length) {
+						open = Arrays.copyOf(open, depth * 2);
+						sawElse = Arrays.copyOf(sawElse, depth * 2);
+					}
+					open[depth] = blocks;
+					sawElse[depth] = false;
+					depth++;
+					start = push(start, blocks, eol);
+					end = push(end, blocks++, -1);
+					break;
+				case PP_ELIF:
+				case PP_ELSE:
+					if (depth == 0)
+						break;
+					if (sawElse[depth - 1]) {
+						/* Reported as an error. */
+						problems = push(problems, nproblems++, i);
+						break;
+					}
+					if (command == PP_ELSE) {
+						sawElse[depth - 1] = true;
+						if (label)
+							labels = push(labels, nlabels++, i);
+					}
+					end[open[depth - 1]] = i;
+					open[depth - 1] = blocks;
+					start = push(start, blocks, eol);
+					end = push(end, blocks++, -1);
+					break;
+				case PP_ENDIF:
+					if (depth == 0)
+						break;
+					if (label)
+						labels = push(labels, nlabels++, i);
+					end[open[--depth]] = i;
+					break;
+				case PP_IMPORT:
+				case PP_EXTENSION:
+				case PP_VERSION:
+				case PP_CUSTOM:
+					problems = push(problems, nproblems++, i);
+					break;
+				default:
+					break;
+			}
+		}
+
+		int n = 0;
+		for (int i = 0; i < blocks; i++)
+			if (end[i] >= 0)
+				n++;
+		this.blockStart = new int[n];
+		this.blockEnd = new int[n];
+		this.blockSkippable = new boolean[n];
+		this.blockLabels = new boolean[n];
+		this.blockText = new Token[n];
+		n = 0;
+		for (int i = 0; i < blocks; i++) {
+			if (end[i] < 0)
+				continue;
+			blockStart[n] = start[i];
+			blockEnd[n] = end[i];
+			blockSkippable[n] = !contains(problems, nproblems, start[i], end[i]);
+			blockLabels[n] = contains(labels, nlabels, start[i], end[i]);
+			n++;
+		}
+
+		this.directiveIndex = Arrays.copyOf(directives, ndirectives);
+		this.directiveEnd = Arrays.copyOf(directiveEnds, ndirectives);
+		this.directiveCode = Arrays.copyOf(code, ndirectives);
+	}
+
+	/*
+	 * Compiles an include line whose target is a string or header name
+	 * followed only by whitespace. Other targets are macro expanded or
+	 * produce diagnostics, so they are left to the Preprocessor.
+	 */
+	@CheckForNull
+	private Include include(int index) {
+		int run = run(index);
+		if (run < 0)
+			return null;
+		int i = nonwhite(runStart[run]);
+		String name;
+		boolean quoted;
+		switch (types[i]) {
+			case STRING:
+				StringBuilder buf = new StringBuilder((String) tokens[i].getValue());
+				for (i = nonwhite(i + 1); types[i] == STRING; i = nonwhite(i + 1))
+					buf.append((String) tokens[i].getValue());
+				name = buf.toString();
+				quoted = true;
+				break;
+			case HEADER:
+				name = (String) tokens[i].getValue();
+				quoted = false;
+				i = nonwhite(i + 1);
+				break;
+			default:
+				return null;
+		}
+		if (types[i] != NL || i >= runEnd[run])
+			return null;
+		return new Include(name, quoted, i);
+	}
+
+	/*
+	 * Collects the tokens of an expression which ends at the given NL.
+	 * Expressions with a malformed defined are left to the Preprocessor,
+	 * which reports them.
+	 */
+	@CheckForNull
+	private Condition condition(int index, int end) {
+		int n = 0;
+		for (int i = nonwhite(index); i < end; i = nonwhite(i + 1))
+			n++;
+		Token[] condition = new Token[n + 1];
+		Token[] operands = new Token[n + 1];
+		int[] next = new int[n + 1];
+		n = 0;
+		for (int i = nonwhite(index);; i = nonwhite(i + 1)) {
+			condition[n] = tokens[i];
+			if (types[i] == IDENTIFIER && tokens[i].getText().equals("defined")) {
+				int operand = nonwhite(i + 1);
+				boolean paren = types[operand] == '(';
+				if (paren)
+					operand = nonwhite(operand + 1);
+				if (types[operand] != IDENTIFIER)
+					return null;
+				operands[n] = tokens[operand];
+				i = operand;
+				if (paren) {
+					i = nonwhite(operand + 1);
+					if (types[i] != ')')
+						return null;
+				}
+			}
+			next[n++] = i + 1;
+			if (i == end)
+				break;
+		}
+		return new Condition(Arrays.copyOf(condition, n), Arrays.copyOf(operands, n), Arrays.copyOf(next, n));
+	}
+
+	private static int[] push(int[] array, int index, int value) {
+		if (index == array.length)
+			array = Arrays.copyOf(array, index * 2);
+		array[index] = value;
+		return array;
+	}
+
+	/* Returns true if the sorted array has a value in [from, to). */
+	private static boolean contains(int[] array, int size, int from, int to) {
+		int i = Arrays.binarySearch(array, 0, size, from);
+		if (i < 0)
+			i = -i - 1;
+		return i < size && array[i] < to;
+	}
+
+	/* Returns the index of the next token which isn't whitespace or a comment. */
+	private int nonwhite(int index) {
+		while (true) {
+			switch (types[index]) {
+				case WHITESPACE:
+				case CCOMMENT:
+				case CPPCOMMENT:
+					index++;
+					break;
+				default:
+					return index;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of tokens in the main stream, including
+	 * the final EOF.
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Returns the total number of stored tokens, which is a measure
+	 * of the memory used by this file.
+	 */
+	int weight() {
+		return types.length;
+	}
+
+	@NonNull
+	Token token(int index) {
+		return tokens[index];
+	}
+
+	int line(int index) {
+		return tokens[index].getLine();
+	}
+
+	int column(int index) {
+		return tokens[index].getColumn();
+	}
+
+	/**
+	 * Returns the run of include mode tokens which starts at the given
+	 * main stream index, or -1 if there is none.
+	 */
+	int run(int index) {
+		int run = Arrays.binarySearch(runIndex, index);
+		return run < 0 ? -1 : run;
+	}
+
+	int runStart(int run) {
+		return runStart[run];
+	}
+
+	int runEnd(int run) {
+		return runEnd[run];
+	}
+
+	int runResume(int run) {
+		return runResume[run];
+	}
+
+	/**
+	 * Returns the conditional block which starts at the given main
+	 * stream index and can be skipped as a whole when it is inactive,
+	 * or -1 if there is none.
+	 *
+	 * @param labels true if #else and #endif labels are warned about.
+	 */
+	int block(int index, boolean labels) {
+		int block = Arrays.binarySearch(blockStart, index);
+		if (block < 0 || !blockSkippable[block] || (labels && blockLabels[block]))
+			return -1;
+		return block;
+	}
+
+	/**
+	 * Returns the directive whose name ends before the given main stream
+	 * index, or -1 if it has no compiled form.
+	 */
+	int directive(int index) {
+		int directive = Arrays.binarySearch(directiveIndex, index);
+		return directive < 0 ? -1 : directive;
+	}
+
+	/**
+	 * Returns the index of the NL ending the directive.
+	 */
+	int directiveEnd(int directive) {
+		return directiveEnd[directive];
+	}
+
+	/**
+	 * Returns the compiled form of the directive: a {@link Macro} without
+	 * a source for definitions which have been executed before, an
+	 * {@link Include} or a {@link Condition}. Returns null if it can't be
+	 * compiled.
+	 */
+	@CheckForNull
+	Object directiveCode(int directive) {
+		return directiveCode[directive];
+	}
+
+	void setDirectiveCode(int directive, @NonNull Macro m) {
+		/* Racing threads store equivalent immutable macros. */
+		directiveCode[directive] = m;
+	}
+
+	/**
+	 * Returns the index of the HASH of the directive ending the block.
+	 */
+	int blockEnd(int block) {
+		return blockEnd[block];
+	}
+
+	/**
+	 * Returns the token the Preprocessor outputs for the block when it
+	 * is inactive.
+	 */
+	@NonNull
+	Token blockText(int block) {
+		Token tok = blockText[block];
+		if (tok == null) {
+			/* Racing threads compute equal immutable tokens. */
+			StringBuilder out = new StringBuilder();
+			int start = blockStart[block];
+			skip(start, blockEnd[block], true, out);
+			tok = skipped(line(start), column(start), out.toString());
+			blockText[block] = tok;
+		}
+		return tok;
+	}
+
+	/**
+	 * Returns the token for skipped text. It is of type NL if the text
+	 * consists only of newlines and WHITESPACE otherwise.
+	 */
+	@NonNull
+	static Token skipped(int line, int column, @NonNull String text) {
+		int type = text.isEmpty() ? WHITESPACE : NL;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) != '\n') {
+				type = WHITESPACE;
+				break;
+			}
+		}
+		return new Token(type, line, column, text);
+	}
+
+	/**
+	 * Appends the output of the Preprocessor for inactive tokens, starting
+	 * at the given main stream index. This stops at the given end, at EOF
+	 * or, unless directives are skipped too, at the next directive.
+	 *
+	 * @return the index at which skipping stopped, or its complement if
+	 *         the input ended in the middle of a line.
+	 */
+	int skip(int index, int end, boolean directives, @NonNull StringBuilder out) {
+		while (index < end) {
+			switch (types[index]) {
+				case EOF:
+					return index;
+				case HASH:
+					if (!directives)
+						return index;
+					index = nonwhite(index + 1);
+					if (types[index] == NL) {
+						/* A null directive outputs nothing at all. */
+						index++;
+						continue;
+					}
+					break;
+				case WHITESPACE:
+				case NL:
+					out.append(tokens[index++].getText());
+					continue;
+				case CCOMMENT:
+				case CPPCOMMENT:
+					Preprocessor.appendNewlines(tokens[index++].getText(), out);
+					continue;
+				default:
+					break;
+			}
+
+			/* Skip the rest of the line like Source.skipline() does. */
+			while (types[index] != NL && types[index] != EOF)
+				index++;
+			if (types[index] == EOF) {
+				out.append('\n');
+				return ~index;
+			}
+			out.append(tokens[index++].getText());
+		}
+		return index;
+	}
+
+	/**
+	 * Lexes a file to completion.
+	 *
+	 * Both sources must lex the same content. The first one is read
+	 * normally while the second one is switched to include mode on include
+	 * lines, in the same way the Preprocessor does it.
+	 *
+	 * @return the tokenized file, or null if lexing produced any warnings
+	 *         or errors.
+	 */
+	@CheckForNull
+	static TokenizedFile tokenize(@NonNull Preprocessor pp,
+			@NonNull LexerSource plain, @NonNull LexerSource include) {
+		Recorder recorder = new Recorder();
+		plain.init(pp);
+		plain.setListener(recorder);
+		include.init(pp);
+		include.setListener(recorder);
+
+		Builder b = new Builder();
+		Builder runs = new Builder();
+		boolean directive = false;
+		while (true) {
+			Token tok = plain.token();
+			if (!b.add(tok, include.token()))
+				return null;
+			switch (tok.getType()) {
+				case EOF:
+					if (recorder.diagnostics)
+						return null;
+					return b.build(runs);
+				case HASH:
+					directive = true;
+					break;
+				case WHITESPACE:
+				case CCOMMENT:
+				case CPPCOMMENT:
+					break;
+				case IDENTIFIER:
+					if (directive) {
+						String name = tok.getText();
+						if (name.equals("include") || name.equals("include_next")) {
+							if (!b.addRun(runs, plain, include))
+								return null;
+						}
+					}
+					directive = false;
+					break;
+				default:
+					directive = false;
+					break;
+			}
+		}
+	}
+
+	private static final class Recorder implements PreprocessorListener {
+		private boolean diagnostics;
+
+		@Override
+		public void handleWarning(@NonNull Source source, int line, int column, @NonNull String msg) {
+			diagnostics = true;
+		}
+
+		@Override
+		public void handleError(@NonNull Source source, int line, int column, @NonNull String msg) {
+			diagnostics = true;
+		}
+
+		@Override
+		public void handleSourceChange(@NonNull Source source, @NonNull SourceChangeEvent event) {
+		}
+	}
+
+	private static final class Builder {
+		private int size;
+		private Token[] tokens = new Token[64];
+		private int[] types = new int[64];
+
+		private int runs;
+		private int[] runIndex = new int[4];
+		private int[] runStart = new int[4];
+		private int[] runEnd = new int[4];
+		private int[] runResume = new int[4];
+
+		void add(@NonNull Token tok) {
+			if (size == types.length) {
+				int capacity = size * 2;
+				tokens = Arrays.copyOf(tokens, capacity);
+				types = Arrays.copyOf(types, capacity);
+			}
+			tokens[size] = tok;
+			types[size] = tok.getType();
+			size++;
+		}
+
+		/**
+		 * Adds a token of the plain stream after checking that the
+		 * include stream agrees with it.
+		 */
+		boolean add(@NonNull Token tok, @NonNull Token check) {
+			if (tok.getType() != check.getType()
+					|| tok.getLine() != check.getLine()
+					|| tok.getColumn() != check.getColumn()
+					|| !Objects.equals(tok.getText(), check.getText()))
+				return false;
+			add(tok);
+			return true;
+		}
+
+		/**
+		 * Reads the rest of an include line from both sources, keeping
+		 * the plain tokens in the main stream and the include mode tokens
+		 * as a run. Afterwards, both sources are aligned again.
+		 */
+		boolean addRun(@NonNull Builder runs, @NonNull LexerSource plain, @NonNull LexerSource include) {
+			if (this.runs == runIndex.length) {
+				int capacity = this.runs * 2;
+				runIndex = Arrays.copyOf(runIndex, capacity);
+				runStart = Arrays.copyOf(runStart, capacity);
+				runEnd = Arrays.copyOf(runEnd, capacity);
+				runResume = Arrays.copyOf(runResume, capacity);
+			}
+			runIndex[this.runs] = size;
+			runStart[this.runs] = runs.size;
+
+			include.setInclude(true);
+			Token tok;
+			do {
+				tok = include.token();
+				if (tok.getType() != EOF)
+					runs.add(tok);
+			} while (tok.getType() != NL && tok.getType() != EOF);
+			include.setInclude(false);
+
+			Token end;
+			do {
+				end = plain.token();
+				if (end.getType() != EOF)
+					add(end);
+			} while (end.getType() != NL && end.getType() != EOF);
+			if (end.getType() != tok.getType())
+				return false;
+
+			/* The include mode NL is never merged with the following ones. */
+			if (end.getType() == NL && end.getText().length() > 1)
+				runs.add(include.token());
+			/* At EOF, both sources keep returning EOF, which the caller adds. */
+			runResume[this.runs] = size;
+			runEnd[this.runs] = runs.size;
+			this.runs++;
+			return true;
+		}
+
+		@NonNull
+		TokenizedFile build(@NonNull Builder runs) {
+			/* Runs are appended to the main stream. */
+			int length = size;
+			for (int i = 0; i < runs.size; i++)
+				add(runs.tokens[i]);
+			for (int i = 0; i < this.runs; i++) {
+				runStart[i] += length;
+				runEnd[i] += length;
+			}
+			return new TokenizedFile(this, length);
+		}
+
+		@NonNull
+		TokenizedFile build(int length) {
+			return new TokenizedFile(this, length);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package io.github.douira.glsl_preprocessor;
+
+import static io.github.douira.glsl_preprocessor.Token.*;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * A Source which replays the tokens of a {@link TokenizedFile}.
+ *
+ * It behaves exactly like the {@link LexerSource} the file was lexed
+ * with, without lexing anything.
+ */
+final class TokenizedFileSource extends Source {
+	private final TokenizedFile file;
+	private final String name;
+
+	/* The next token of the main stream. */
+	private int index;
+
+	/* The remaining tokens of the current include mode run. */
+	private int runIndex;
+	private int runEnd;
+	private int runResume;
+
+	private boolean endifLabels;
+	private StringBuilder skipped;
+
+	TokenizedFileSource(@NonNull TokenizedFile file, @NonNull String name) {
+		this.file = file;
+		this.name = name;
+	}
+
+	@Override
+	void init(Preprocessor pp) {
+		super.init(pp);
+		this.endifLabels = pp.getWarning(Warning.ENDIF_LABELS);
+	}
+
+	@Override
+	void setInclude(boolean b) {
+		if (!b || runIndex < runEnd)
+			return;
+		int run = file.run(index);
+		if (run >= 0) {
+			runIndex = file.runStart(run);
+			runEnd = file.runEnd(run);
+			runResume = file.runResume(run);
+		}
+	}
+
+	@Override
+	public Token token() {
+		if (runIndex < runEnd) {
+			Token tok = file.token(runIndex++);
+			if (runIndex == runEnd)
+				index = runResume;
+			return tok;
+		}
+		Token tok = file.token(index);
+		/* Keep returning EOF. */
+		if (index < file.length() - 1)
+			index++;
+		return tok;
+	}
+
+	/**
+	 * Returns the directive whose name was the last token returned, or
+	 * -1 if it has no compiled form.
+	 */
+	int directive() {
+		if (runIndex < runEnd)
+			return -1;
+		return file.directive(index);
+	}
+
+	@CheckForNull
+	Object getDirectiveCode(int directive) {
+		return file.directiveCode(directive);
+	}
+
+	void setDirectiveCode(int directive, @NonNull Macro m) {
+		file.setDirectiveCode(directive, m);
+	}
+
+	/**
+	 * Continues after the directive and returns the NL ending it.
+	 */
+	@NonNull
+	Token endDirective(int directive) {
+		int end = file.directiveEnd(directive);
+		index = end + 1;
+		return file.token(end);
+	}
+
+	/**
+	 * Continues after the include mode NL ending the directive and
+	 * returns it.
+	 */
+	@NonNull
+	Token endDirective(@NonNull TokenizedFile.Include include) {
+		int run = file.run(index);
+		runIndex = include.end() + 1;
+		runEnd = file.runEnd(run);
+		runResume = file.runResume(run);
+		if (runIndex == runEnd)
+			index = runResume;
+		return file.token(include.end());
+	}
+
+	/**
+	 * Continues at the given main stream index of the current line.
+	 */
+	void seek(int index) {
+		this.index = index;
+	}
+
+	/*
+	 * Inactive blocks are jumped over using the conditional skeleton.
+	 * Otherwise the tokens up to the next directive are skipped.
+	 */
+	@Override
+	Token skipInactive() {
+		if (runIndex < runEnd)
+			return null;
+		int block = file.block(index, endifLabels);
+		if (block >= 0 && file.blockEnd(block) > index) {
+			Token tok = file.blockText(block);
+			index = file.blockEnd(block);
+			return tok;
+		}
+		if (skipped == null)
+			skipped = new StringBuilder();
+		skipped.setLength(0);
+		int stop = file.skip(index, file.length(), false, skipped);
+		if (stop < 0) {
+			stop = ~stop;
+			warning(file.line(stop), file.column(stop),
+					"No newline before end of file");
+		}
+		if (stop == index)
+			return null;
+		Token tok = TokenizedFile.skipped(file.line(index), file.column(index), skipped.toString());
+		index = stop;
+		return tok;
+	}
+
+	/* The position of the next token, which is where a lexer would be. */
+
+	@Override
+	public int getLine() {
+		return file.line(runIndex < runEnd ? runIndex : index);
+	}
+
+	@Override
+	public int getColumn() {
+		return file.column(runIndex < runEnd ? runIndex : index);
+	}
+
+	@Override
+	boolean isNumbered() {
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
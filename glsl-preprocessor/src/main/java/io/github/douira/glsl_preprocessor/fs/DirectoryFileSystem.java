@@ -0,0 +1,242 @@
+package io.github.douira.glsl_preprocessor.fs;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.github.douira.glsl_preprocessor.*;
+
+/**
+ * A file system over a directory on disk.
+ *
+ * Paths are relative to the root directory, with or without a leading
+ * '/', and can't leave it, also not through symbolic links. Quoted
+ * includes are first looked up in the directory of the including file.
+ * The names of the files are their paths relative to the root.
+ *
+ * Files are read when their content is first needed and kept until they
+ * change on disk, up to a total number of characters, evicting the least
+ * recently used files first. ASCII files are kept as compact strings,
+ * which take up one byte per character.
+ */
+public class DirectoryFileSystem implements VirtualFileSystem {
+	public static final int DEFAULT_MAX_CHARS = 1 << 24;
+
+	private final Path root;
+	/* The root with symbolic links resolved, once it exists. */
+	private volatile Path realRoot;
+	private final Charset charset;
+	private final int maxChars;
+	private final Map<Path, Content> contents = new LinkedHashMap<>(16, 0.75f, true);
+	private int chars = 0;
+
+	private record Content(FileTime modified, long size, String text) {
+	}
+
+	/**
+	 * Creates a new DirectoryFileSystem.
+	 *
+	 * @param root     The directory to read files from.
+	 * @param charset  The encoding of the files.
+	 * @param maxChars The maximum total number of characters of the cached
+	 *                 files, or 0 to read them on every use.
+	 */
+	public DirectoryFileSystem(@NonNull Path root, @NonNull Charset charset, int maxChars) {
+		if (maxChars < 0)
+			throw new IllegalArgumentException("Negative maximum character count: " + maxChars);
+		this.root = root.toAbsolutePath().normalize();
+		this.realRoot = realRoot();
+		this.charset = charset;
+		this.maxChars = maxChars;
+	}
+
+	public DirectoryFileSystem(@NonNull Path root, @NonNull Charset charset) {
+		this(root, charset, DEFAULT_MAX_CHARS);
+	}
+
+	public DirectoryFileSystem(@NonNull Path root) {
+		this(root, StandardCharsets.UTF_8);
+	}
+
+	@NonNull
+	public Path getRoot() {
+		return root;
+	}
+
+	@NonNull
+	@Override
+	public VirtualFile getFile(@NonNull String path) {
+		String name = IncludePath.normalize(path);
+		if (name == null)
+			return new DirectoryFile(path, null);
+		Path file;
+		try {
+			file = root.resolve(name).normalize();
+		} catch (InvalidPathException e) {
+			return new DirectoryFile(name, null);
+		}
+		/* Separators other than '/' could still leave the root. */
+		if (!file.startsWith(root))
+			return new DirectoryFile(name, null);
+		return new DirectoryFile(name, file);
+	}
+
+	@NonNull
+	@Override
+	public VirtualFile getFile(@CheckForNull Source parent, @NonNull String path, boolean quoted, boolean next) {
+		String sibling = quoted && !next ? IncludePath.sibling(parent, path) : null;
+		if (sibling != null) {
+			VirtualFile file = getFile(sibling);
+			if (file.isFile())
+				return file;
+		}
+		return getFile(path);
+	}
+
+	/**
+	 * Returns the total number of characters of the cached files.
+	 */
+	public synchronized int getCharCount() {
+		return chars;
+	}
+
+	/**
+	 * Forgets the content of all files read so far.
+	 */
+	public synchronized void clear() {
+		contents.clear();
+		chars = 0;
+	}
+
+	@CheckForNull
+	private Path realRoot() {
+		Path real = realRoot;
+		if (real == null) {
+			try {
+				real = root.toRealPath();
+			} catch (IOException e) {
+				return null;
+			}
+			realRoot = real;
+		}
+		return real;
+	}
+
+	/* Returns the path with all symbolic links resolved, or null if it doesn't exist or leaves the root. */
+	@CheckForNull
+	private Path realPath(@NonNull Path path) {
+		Path real = realRoot();
+		if (real == null)
+			return null;
+		try {
+			Path file = path.toRealPath();
+			return file.startsWith(real) ? file : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/* Files are cached by their real path, so all links to a file share its content. */
+	@CheckForNull
+	private String read(@NonNull Path path) {
+		Path real = realPath(path);
+		if (real == null)
+			return null;
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(real, BasicFileAttributes.class);
+		} catch (IOException e) {
+			remove(real);
+			return null;
+		}
+		if (!attributes.isRegularFile())
+			return null;
+		Content content = get(real);
+		if (content != null
+				&& content.modified().equals(attributes.lastModifiedTime())
+				&& content.size() == attributes.size())
+			return content.text();
+		String text;
+		try {
+			text = new String(Files.readAllBytes(real), charset);
+		} catch (IOException e) {
+			return null;
+		}
+		if (maxChars > 0)
+			put(real, new Content(attributes.lastModifiedTime(), attributes.size(), text));
+		return text;
+	}
+
+	private synchronized Content get(@NonNull Path path) {
+		return contents.get(path);
+	}
+
+	private synchronized void remove(@NonNull Path path) {
+		Content removed = contents.remove(path);
+		if (removed != null)
+			chars -= removed.text().length();
+	}
+
+	private synchronized void put(@NonNull Path path, @NonNull Content content) {
+		Content previous = contents.put(path, content);
+		if (previous != null)
+			chars -= previous.text().length();
+		chars += content.text().length();
+		Iterator<Content> it = contents.values().iterator();
+		while (chars > maxChars && it.hasNext()) {
+			chars -= it.next().text().length();
+			it.remove();
+		}
+	}
+
+	private class DirectoryFile implements VirtualFile {
+		private final String name;
+		@CheckForNull
+		private final Path path;
+
+		DirectoryFile(@NonNull String name, @CheckForNull Path path) {
+			this.name = name;
+			this.path = path;
+		}
+
+		@Override
+		public boolean isFile() {
+			if (path == null)
+				return false;
+			Path real = realPath(path);
+			return real != null && Files.isRegularFile(real);
+		}
+
+		@NonNull
+		@Override
+		public Source getSource() {
+			String content = getContent();
+			if (content == null)
+				throw new RuntimeException(new IOException("File not readable: " + name));
+			return new StringLexerSource(content, name, true);
+		}
+
+		@NonNull
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@CheckForNull
+		@Override
+		public String getContent() {
+			return path == null ? null : read(path);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package io.github.douira.glsl_preprocessor.fs;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.github.douira.glsl_preprocessor.Source;
+
+/**
+ * Resolution of include paths for the file systems whose file names are
+ * '/' separated paths relative to a root.
+ */
+final class IncludePath {
+	private IncludePath() {
+	}
+
+	/**
+	 * Returns the path of a quoted include relative to the directory of the
+	 * including source, or null if it has no directory or the path is
+	 * relative to the root.
+	 */
+	@CheckForNull
+	static String sibling(@CheckForNull Source parent, @NonNull String path) {
+		if (parent == null || path.startsWith("/"))
+			return null;
+		String name = parent.getName();
+		int slash = name == null ? -1 : name.lastIndexOf('/');
+		return slash < 0 ? null : name.substring(0, slash + 1) + path;
+	}
+
+	/**
+	 * Returns the given path without a leading '/' and with its "." and
+	 * ".." segments resolved, or null if it leaves the root.
+	 */
+	@CheckForNull
+	static String normalize(@NonNull String path) {
+		Deque<String> segments = new ArrayDeque<>();
+		for (String segment : path.split("/")) {
+			if (segment.isEmpty() || segment.equals("."))
+				continue;
+			if (segment.equals("..")) {
+				if (segments.pollLast() == null)
+					return null;
+			} else {
+				segments.addLast(segment);
+			}
+		}
+		return String.join("/", segments);
+	}
+}
@@ -23,6 +23,17 @@ public class StringFile implements VirtualFile {
 		return new StringLexerSource(content, name, true);
 	}
 
+	@NonNull
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getContent() {
+		return content;
+	}
+
 	@Override
 	public String toString() {
 		return name;
@@ -18,6 +18,7 @@
  */
 package io.github.douira.glsl_preprocessor.fs;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.github.douira.glsl_preprocessor.Source;
 
@@ -29,4 +30,26 @@ public interface VirtualFile {
 
 	@NonNull
 	Source getSource();
+
+	/**
+	 * Returns the name of this file as it is reported by its {@link Source}.
+	 */
+	@NonNull
+	default String getName() {
+		return toString();
+	}
+
+	/**
+	 * Returns the full text of this file if it is available without reading
+	 * it through {@link #getSource()}, or null if it isn't.
+	 *
+	 * Files that return their content can have their tokens cached and shared
+	 * by an {@link io.github.douira.glsl_preprocessor.IncludeCache}. The source
+	 * returned by {@link #getSource()} must then lex exactly this content with
+	 * preprocessor directives enabled.
+	 */
+	@CheckForNull
+	default String getContent() {
+		return null;
+	}
 }
@@ -0,0 +1,180 @@
+package io.github.douira.glsl_preprocessor.fs;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.*;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.github.douira.glsl_preprocessor.*;
+
+/**
+ * A file system over the entries of a zip or jar archive, such as a
+ * shader pack.
+ *
+ * The central directory of the archive is read once when it is opened,
+ * and entries are only decompressed and decoded when their content is
+ * first needed. Paths and file names work like in a
+ * {@link DirectoryFileSystem} rooted at the top of the archive.
+ *
+ * Decoded entries are cached up to a total number of characters, evicting
+ * the least recently used entries first. The file system may be used by
+ * any number of Preprocessors, also on different threads.
+ */
+public class ZipVirtualFileSystem implements VirtualFileSystem, Closeable {
+	public static final int DEFAULT_MAX_CHARS = 1 << 24;
+
+	private final ZipFile zip;
+	private final Charset charset;
+	private final int maxChars;
+	private final Map<String, String> contents = new LinkedHashMap<>(16, 0.75f, true);
+	private int chars = 0;
+
+	/**
+	 * Opens the given archive.
+	 *
+	 * @param file     The archive to open.
+	 * @param charset  The encoding of the entries.
+	 * @param maxChars The maximum total number of characters of the cached
+	 *                 entries, or 0 to decompress them on every use.
+	 */
+	public ZipVirtualFileSystem(@NonNull Path file, @NonNull Charset charset, int maxChars) throws IOException {
+		if (maxChars < 0)
+			throw new IllegalArgumentException("Negative maximum character count: " + maxChars);
+		this.zip = new ZipFile(file.toFile());
+		this.charset = charset;
+		this.maxChars = maxChars;
+	}
+
+	public ZipVirtualFileSystem(@NonNull Path file) throws IOException {
+		this(file, StandardCharsets.UTF_8, DEFAULT_MAX_CHARS);
+	}
+
+	@NonNull
+	@Override
+	public VirtualFile getFile(@NonNull String path) {
+		String name = IncludePath.normalize(path);
+		if (name == null)
+			return new ZipVirtualFile(path, null);
+		ZipEntry entry = zip.getEntry(name);
+		if (entry == null || entry.isDirectory())
+			return new ZipVirtualFile(name, null);
+		return new ZipVirtualFile(name, entry);
+	}
+
+	@NonNull
+	@Override
+	public VirtualFile getFile(@CheckForNull Source parent, @NonNull String path, boolean quoted, boolean next) {
+		String sibling = quoted && !next ? IncludePath.sibling(parent, path) : null;
+		if (sibling != null) {
+			VirtualFile file = getFile(sibling);
+			if (file.isFile())
+				return file;
+		}
+		return getFile(path);
+	}
+
+	/*
+	 * Racing threads just decompress an entry twice. ZipFile can be read
+	 * from concurrently.
+	 */
+	@CheckForNull
+	private String read(@NonNull ZipEntry entry) {
+		String name = entry.getName();
+		String text = get(name);
+		if (text != null)
+			return text;
+		try (InputStream input = zip.getInputStream(entry)) {
+			text = new String(input.readAllBytes(), charset);
+		} catch (IOException | IllegalStateException e) {
+			/* Also thrown if the archive has been closed. */
+			return null;
+		}
+		if (maxChars > 0)
+			put(name, text);
+		return text;
+	}
+
+	private synchronized String get(@NonNull String name) {
+		return contents.get(name);
+	}
+
+	private synchronized void put(@NonNull String name, @NonNull String text) {
+		String previous = contents.put(name, text);
+		if (previous != null)
+			chars -= previous.length();
+		chars += text.length();
+		Iterator<String> it = contents.values().iterator();
+		while (chars > maxChars && it.hasNext()) {
+			chars -= it.next().length();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns the total number of characters of the cached entries.
+	 */
+	public synchronized int getCharCount() {
+		return chars;
+	}
+
+	/**
+	 * Removes all decoded entries from the cache.
+	 */
+	public synchronized void clear() {
+		contents.clear();
+		chars = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		clear();
+		zip.close();
+	}
+
+	private class ZipVirtualFile implements VirtualFile {
+		private final String name;
+		@CheckForNull
+		private final ZipEntry entry;
+
+		ZipVirtualFile(@NonNull String name, @CheckForNull ZipEntry entry) {
+			this.name = name;
+			this.entry = entry;
+		}
+
+		@Override
+		public boolean isFile() {
+			return entry != null;
+		}
+
+		@NonNull
+		@Override
+		public Source getSource() {
+			String content = getContent();
+			if (content == null)
+				throw new RuntimeException(new IOException("File not readable: " + name));
+			return new StringLexerSource(content, name, true);
+		}
+
+		@NonNull
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@CheckForNull
+		@Override
+		public String getContent() {
+			return entry == null ? null : read(entry);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
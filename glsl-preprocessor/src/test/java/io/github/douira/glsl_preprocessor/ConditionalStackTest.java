@@ -0,0 +1,50 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class ConditionalStackTest {
+	@Test
+	public void testNesting() {
+		ConditionalStack states = new ConditionalStack();
+		assertTrue(states.isEnabled());
+		assertFalse(states.pop());
+		assertTrue(states.isEnabled());
+
+		states.push();
+		states.setActive(false);
+		assertFalse(states.isEnabled());
+		assertTrue(states.isParentActive());
+
+		/* Blocks in an inactive block stay disabled. */
+		for (int i = 0; i < 100; i++) {
+			states.push();
+			assertFalse(states.isParentActive());
+			assertTrue(states.isActive());
+			assertFalse(states.isEnabled());
+		}
+		for (int i = 0; i < 100; i++)
+			assertTrue(states.pop());
+
+		states.setSawElse();
+		states.setActive(!states.isActive());
+		assertTrue(states.sawElse());
+		assertTrue(states.isEnabled());
+		assertTrue(states.pop());
+		assertFalse(states.sawElse());
+		assertFalse(states.pop());
+	}
+
+	@Test
+	public void testElif() {
+		ConditionalStack states = new ConditionalStack();
+		states.push();
+		states.setParentActive(false);
+		states.setActive(false);
+		assertFalse(states.isParentActive());
+		assertFalse(states.isEnabled());
+		states.push();
+		assertFalse(states.isParentActive());
+	}
+}
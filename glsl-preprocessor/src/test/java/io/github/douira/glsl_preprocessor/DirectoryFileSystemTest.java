@@ -0,0 +1,76 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.douira.glsl_preprocessor.fs.*;
+
+public class DirectoryFileSystemTest {
+	@TempDir
+	Path root;
+
+	private void write(String path, String content) throws Exception {
+		Path file = root.resolve(path);
+		Files.createDirectories(file.getParent());
+		Files.writeString(file, content);
+	}
+
+	@Test
+	public void testOutsideRoot() throws Exception {
+		Files.writeString(root.resolve("secret.txt"), "secret");
+		DirectoryFileSystem fs = new DirectoryFileSystem(root.resolve("pack"));
+		VirtualFile file = fs.getFile("../secret.txt");
+		assertFalse(file.isFile());
+		assertNull(file.getContent());
+		assertFalse(fs.getFile("missing.glsl").isFile());
+
+		Path pack = Files.createDirectories(root.resolve("pack"));
+		Files.createSymbolicLink(pack.resolve("link.txt"), root.resolve("secret.txt"));
+		Files.createSymbolicLink(pack.resolve("dir"), root);
+		Files.writeString(pack.resolve("inside.txt"), "inside");
+		Files.createSymbolicLink(pack.resolve("alias.txt"), pack.resolve("inside.txt"));
+		for (String path : new String[] { "link.txt", "dir/secret.txt" }) {
+			file = fs.getFile(path);
+			assertFalse(file.isFile(), path);
+			assertNull(file.getContent(), path);
+		}
+		assertEquals("inside", fs.getFile("alias.txt").getContent());
+		assertEquals("inside", fs.getFile("inside.txt").getContent());
+		/* Both names are cached as the same file. */
+		assertEquals(6, fs.getCharCount());
+	}
+
+	@Test
+	public void testChangedFile() throws Exception {
+		write("a.glsl", "first");
+		DirectoryFileSystem fs = new DirectoryFileSystem(root);
+		assertEquals("first", fs.getFile("a.glsl").getContent());
+		write("a.glsl", "second!");
+		Files.setLastModifiedTime(root.resolve("a.glsl"), FileTime.fromMillis(0));
+		assertEquals("second!", fs.getFile("/a.glsl").getContent());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		write("a", "aaaa");
+		write("b", "bbbb");
+		write("c", "cccc");
+		DirectoryFileSystem fs = new DirectoryFileSystem(root, StandardCharsets.UTF_8, 10);
+		assertEquals("aaaa", fs.getFile("a").getContent());
+		assertEquals("bbbb", fs.getFile("b").getContent());
+		assertEquals(8, fs.getCharCount());
+		assertEquals("cccc", fs.getFile("c").getContent());
+		assertEquals(8, fs.getCharCount());
+		fs.clear();
+		assertEquals(0, fs.getCharCount());
+		fs = new DirectoryFileSystem(root, StandardCharsets.UTF_8, 0);
+		assertEquals("aaaa", fs.getFile("a").getContent());
+		assertEquals(0, fs.getCharCount());
+	}
+}
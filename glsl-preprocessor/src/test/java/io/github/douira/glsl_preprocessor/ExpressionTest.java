@@ -0,0 +1,81 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ExpressionTest {
+	private final List<String> errors = new ArrayList<>();
+
+	private boolean eval(String expr) {
+		Preprocessor pp = new Preprocessor("#define A 1\n#if " + expr + "\nyes\n#endif\n");
+		pp.setListener(new DefaultPreprocessorListener() {
+			@Override
+			public void handleError(Source source, int line, int column, String msg) {
+				errors.add(line + ":" + column + ": " + msg);
+			}
+		});
+		String output = pp.printToString();
+		pp.close();
+		return output.contains("yes");
+	}
+
+	@Test
+	public void testOperators() {
+		assertTrue(eval("1 + 2 * 3 == 7"));
+		assertTrue(eval("(1 + 2) * 3 == 9"));
+		assertTrue(eval("1 << 4 >> 2 == 4"));
+		assertTrue(eval("-(-3) == 3 && ~0 == -1 && !0"));
+		assertTrue(eval("(0x10 | 1 ^ 3 & 2) == 19"));
+		assertTrue(eval("1 || 0 && 0"));
+		assertTrue(eval("1 >= 1 && 1 <= 1 && 2 > 1 && 1 < 2 && 1 != 2"));
+		assertTrue(eval("7 / 2 == 3 && 7 % 2 == 1"));
+		assertFalse(eval("1 > 2"));
+		assertTrue(errors.isEmpty());
+	}
+
+	@Test
+	public void testConditional() {
+		assertTrue(eval("1 ? 2 : 0"));
+		assertFalse(eval("0 ? 2 : 0"));
+		assertTrue(eval("1 ? 2 : 3 + 4"));
+		assertTrue(eval("0 ? 0 : 0 ? 0 : 3"));
+		assertTrue(eval("(1 ? 0 : 1) + 1"));
+		assertTrue(errors.isEmpty());
+	}
+
+	@Test
+	public void testDefined() {
+		assertTrue(eval("defined A"));
+		assertTrue(eval("defined(A) && !defined(B)"));
+		assertTrue(eval("defined A + defined A == 2"));
+		assertTrue(errors.isEmpty());
+	}
+
+	@Test
+	public void testErrors() {
+		assertFalse(eval("7 / 0"));
+		assertFalse(eval("(1"));
+		assertFalse(eval("1 ? 2"));
+		assertFalse(eval("+"));
+		assertFalse(eval("(1 defined A"));
+		assertEquals(List.of(
+				"2:6: Division by zero",
+				"2:6: Missing ) in expression. Got \n",
+				"2:9: Missing : in conditional expression. Got \n",
+				"2:4: Bad token in expression: +",
+				"2:15: Missing ) in expression. Got 1"), errors);
+	}
+
+	@Test
+	public void testDeepNesting() {
+		int depth = 100000;
+		assertTrue(eval("(".repeat(depth) + "1" + ")".repeat(depth)));
+		assertTrue(eval("!".repeat(depth) + "1"));
+		assertTrue(eval("0 ? 0 : ".repeat(depth) + "1"));
+		assertTrue(errors.isEmpty());
+	}
+}
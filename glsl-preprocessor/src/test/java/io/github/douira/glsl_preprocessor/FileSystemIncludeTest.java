@@ -0,0 +1,118 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import io.github.douira.glsl_preprocessor.fs.*;
+
+/**
+ * Include resolution which all file systems over a tree of files share.
+ */
+public class FileSystemIncludeTest {
+	private static final Map<String, String> FILES = Map.of(
+			"shaders/lib/common.glsl", "#include \"util.glsl\"\ncommon\n",
+			"shaders/lib/util.glsl", "util é\n",
+			"shaders/util.glsl", "outer\n",
+			"shaders/settings.glsl", "settings\n");
+
+	enum Kind {
+		DIRECTORY {
+			@Override
+			VirtualFileSystem create(Path root) throws IOException {
+				for (Map.Entry<String, String> file : FILES.entrySet()) {
+					Path path = root.resolve(file.getKey());
+					Files.createDirectories(path.getParent());
+					Files.writeString(path, file.getValue());
+				}
+				return new DirectoryFileSystem(root);
+			}
+		},
+		ZIP {
+			@Override
+			VirtualFileSystem create(Path root) throws IOException {
+				Path file = root.resolve("pack.zip");
+				try (OutputStream out = Files.newOutputStream(file);
+						ZipOutputStream zip = new ZipOutputStream(out)) {
+					zip.putNextEntry(new ZipEntry("shaders/"));
+					zip.closeEntry();
+					for (Map.Entry<String, String> entry : FILES.entrySet()) {
+						zip.putNextEntry(new ZipEntry(entry.getKey()));
+						zip.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+						zip.closeEntry();
+					}
+				}
+				return new ZipVirtualFileSystem(file);
+			}
+		};
+
+		abstract VirtualFileSystem create(Path root) throws IOException;
+	}
+
+	@TempDir
+	Path root;
+
+	private String preprocess(VirtualFileSystem fs, String input, IncludeCache cache) {
+		Preprocessor pp = new Preprocessor();
+		pp.setFileSystem(fs);
+		pp.setIncludeCache(cache);
+		pp.addInput(new StringLexerSource(input, "shaders/main.fsh", true));
+		String output = pp.printToString();
+		pp.close();
+		return output;
+	}
+
+	private static void close(VirtualFileSystem fs) throws IOException {
+		if (fs instanceof Closeable closeable)
+			closeable.close();
+	}
+
+	@ParameterizedTest
+	@EnumSource(Kind.class)
+	public void testIncludes(Kind kind) throws Exception {
+		VirtualFileSystem fs = kind.create(root);
+		try {
+			String input = "#include \"lib/common.glsl\"\n#include </shaders/settings.glsl>\n#include \"util.glsl\"\n";
+			for (IncludeCache cache : new IncludeCache[] { null, new IncludeCache() }) {
+				String output = preprocess(fs, input, cache);
+				assertTrue(output.contains("util é\ncommon\n"), output);
+				assertTrue(output.contains("settings"), output);
+				assertTrue(output.contains("outer"), output);
+			}
+		} finally {
+			close(fs);
+		}
+	}
+
+	@ParameterizedTest
+	@EnumSource(Kind.class)
+	public void testPaths(Kind kind) throws Exception {
+		VirtualFileSystem fs = kind.create(root);
+		try {
+			for (String path : new String[] {
+					"shaders/lib/util.glsl", "/shaders/lib/util.glsl", "shaders//lib/./util.glsl",
+					"shaders/lib/../lib/util.glsl", "shaders/x/../lib/util.glsl" }) {
+				VirtualFile file = fs.getFile(path);
+				assertTrue(file.isFile(), path);
+				assertEquals("shaders/lib/util.glsl", file.getName(), path);
+				assertEquals("util é\n", file.getContent(), path);
+			}
+			for (String path : new String[] { "missing.glsl", "shaders", "shaders/", "../shaders/util.glsl",
+					"shaders/../../shaders/util.glsl" }) {
+				VirtualFile file = fs.getFile(path);
+				assertFalse(file.isFile(), path);
+				assertNull(file.getContent(), path);
+			}
+		} finally {
+			close(fs);
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package io.github.douira.glsl_preprocessor;
+
+import static io.github.douira.glsl_preprocessor.Token.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.github.douira.glsl_preprocessor.fs.MemoryFileSystem;
+
+public class IncludeCacheTest {
+	private static final String LIB = """
+			#ifndef LIB
+			#define LIB
+			#include <b.h>
+			#include "c.h" // comment
+			#if 0
+			#include <missing.h>
+
+
+			#include "missing\\q.h"
+			#endif
+			vec3 lib(vec3 x) { return x * 2.0 + '\\n'; }
+			#endif
+			""";
+
+	private static MemoryFileSystem fileSystem() {
+		MemoryFileSystem fs = new MemoryFileSystem();
+		fs.addFile("a.h", LIB);
+		fs.addFile("b.h", "float b = 1.0;\r\n#define B(x) (x + 1)\r\n");
+		fs.addFile("c.h", "#include \"b.h\"\n\n\nfloat c = B(2);\n#include <b.h>");
+		fs.addFile("d.h", "#define STR \"\\q\"\n");
+		return fs;
+	}
+
+	private static final String CONDITIONALS = """
+			#ifdef A
+			a /* x
+			y */ b
+			#  if B // c
+			ab
+			#  elif C
+			#include <none.h>
+			ac
+			#  else junk
+			#
+			a_else
+			#  endif junk
+			#elif B
+			  "str /* \\" " /* a
+			b */ x
+			# /* null */
+			#else
+			#if 0
+			#else
+			#else
+			#endif
+			#endif
+			#ifndef C
+			#if A
+			#elif B
+			#unknown
+			#endif
+			#else
+			\t// comment
+			c\
+			d
+			#endif
+			#if 1
+			#else
+			tail /* open
+			""";
+
+	private static final String DIRECTIVES = """
+			#define F(x, ...) x ## __VA_ARGS__ + #x
+			#define G(...) F(__VA_ARGS__)
+			#define E(a, ... b) a
+			#define N 3
+			#define M N
+			#if defined A && N > 2 || defined(B) && !defined ( C )
+			F(1, 2) G(a, b)
+			#elif A + N * 2 == 7 ? B : C
+			n
+			#elif X Y
+			#elif (1
+			#elif 1 / A
+			#elif defined(
+			#elif F(1, 2)
+			#elif M == 3 /* comment */
+			m
+			#endif
+			#include "b.h" // comment
+			#include <b.h>
+			#include "b" ".h"
+			#include <b.h> junk
+			#define H <b.h>
+			#include H
+			#undef N
+			#define N 4
+			#if N == 4
+			N M
+			#endif
+			""";
+
+	private static String preprocess(String input, IncludeCache cache) {
+		return preprocess(input, cache, fileSystem(), pp -> pp.addFeature(Feature.KEEP_ALL_COMMENTS));
+	}
+
+	private static String preprocess(String input, IncludeCache cache, MemoryFileSystem fs,
+			Consumer<Preprocessor> prepare) {
+		StringBuilder log = new StringBuilder();
+		Preprocessor pp = new Preprocessor();
+		prepare.accept(pp);
+		pp.setFileSystem(fs);
+		pp.setIncludeCache(cache);
+		pp.addFeature(Feature.LINE_MARKERS);
+		pp.setListener(new DefaultPreprocessorListener() {
+			@Override
+			public void handleWarning(@NonNull Source source, int line, int column, @NonNull String msg) {
+				log.append("warning ").append(source.getName()).append(':').append(line).append(':').append(column)
+						.append(' ').append(msg).append('\n');
+			}
+
+			@Override
+			public void handleError(@NonNull Source source, int line, int column, @NonNull String msg) {
+				log.append("error ").append(source.getName()).append(':').append(line).append(':').append(column)
+						.append(' ').append(msg).append('\n');
+			}
+
+			@Override
+			public void handleSourceChange(Source source, @NonNull SourceChangeEvent event) {
+				log.append(event);
+				if (source != null)
+					log.append(' ').append(source.getName()).append(':').append(source.getLine())
+							.append(':').append(source.getColumn());
+				log.append('\n');
+			}
+		});
+		pp.addInput(new StringLexerSource(input, "main", true));
+		/*
+		 * Inactive text is output as one token per jumped over block, but
+		 * as one per skipped line range by the lexer. Runs of whitespace
+		 * are compared as a whole unless comments are kept, which disables
+		 * jumping.
+		 */
+		boolean coalesce = !pp.getFeature(Feature.KEEP_ALL_COMMENTS);
+		Token white = null;
+		StringBuilder whiteText = new StringBuilder();
+		while (true) {
+			Token tok = pp.token();
+			int type = tok.getType();
+			if (coalesce && (type == NL || type == WHITESPACE)) {
+				if (white == null)
+					white = tok;
+				whiteText.append(tok.getText());
+				continue;
+			}
+			if (white != null) {
+				log.append("[white@").append(white.getLine()).append(',').append(white.getColumn())
+						.append("]:\"").append(whiteText).append("\"\n");
+				white = null;
+				whiteText.setLength(0);
+			}
+			log.append(tok).append('\n');
+			if (type == EOF)
+				break;
+		}
+		pp.close();
+		return log.toString();
+	}
+
+	@Test
+	public void testCachedMatchesUncached() {
+		String input = "#include \"a.h\"\n#include \"c.h\"\n#include \"a.h\"\n#include \"d.h\"\nSTR\n";
+		for (boolean comments : new boolean[] { false, true }) {
+			Consumer<Preprocessor> prepare = pp -> {
+				if (comments)
+					pp.addFeature(Feature.KEEP_ALL_COMMENTS);
+			};
+			String expected = preprocess(input, null, fileSystem(), prepare);
+
+			IncludeCache cache = new IncludeCache();
+			assertEquals(expected, preprocess(input, cache, fileSystem(), prepare));
+			int size = cache.size();
+			assertEquals(4, size);
+			assertEquals(expected, preprocess(input, cache, fileSystem(), prepare));
+			assertEquals(size, cache.size());
+		}
+	}
+
+	@Test
+	public void testConditionalSkeleton() {
+		MemoryFileSystem fs = new MemoryFileSystem();
+		fs.addFile("cond.h", CONDITIONALS);
+		IncludeCache cache = new IncludeCache();
+		for (int defines = 0; defines < 8; defines++) {
+			for (boolean labels : new boolean[] { false, true }) {
+				for (boolean comments : new boolean[] { false, true }) {
+					StringBuilder input = new StringBuilder();
+					for (int i = 0; i < 3; i++)
+						if ((defines & (1 << i)) != 0)
+							input.append("#define ").append((char) ('A' + i)).append('\n');
+					input.append("#include \"cond.h\"\n");
+					Consumer<Preprocessor> prepare = pp -> {
+						if (labels)
+							pp.addWarning(Warning.ENDIF_LABELS);
+						if (comments)
+							pp.addFeature(Feature.KEEP_ALL_COMMENTS);
+					};
+					assertEquals(preprocess(input.toString(), null, fs, prepare),
+							preprocess(input.toString(), cache, fs, prepare),
+							"defines " + defines + ", labels " + labels + ", comments " + comments);
+				}
+			}
+		}
+		assertEquals(1, cache.size());
+	}
+
+	private static List<Token> tokens(String input, IncludeCache cache, MemoryFileSystem fs) {
+		Preprocessor pp = new Preprocessor();
+		pp.setFileSystem(fs);
+		pp.setIncludeCache(cache);
+		pp.setListener(new DefaultPreprocessorListener());
+		pp.addInput(new StringLexerSource(input, "main", true));
+		List<Token> tokens = new ArrayList<>();
+		for (Token tok = pp.token(); tok.getType() != EOF; tok = pp.token())
+			tokens.add(tok);
+		pp.close();
+		return tokens;
+	}
+
+	@Test
+	public void testSkippedBlockReplayed() {
+		MemoryFileSystem fs = new MemoryFileSystem();
+		fs.addFile("skip.h", "before\n#if 0\nx /* y */ z\n\n#else\nelse\n#endif\nafter\n");
+		IncludeCache cache = new IncludeCache();
+		List<Token> uncached = tokens("#include \"skip.h\"\n", null, fs);
+		List<Token> first = tokens("#include \"skip.h\"\n", cache, fs);
+		List<Token> second = tokens("#include \"skip.h\"\n", cache, fs);
+		assertEquals(uncached.toString(), first.toString());
+		assertEquals(uncached.toString(), second.toString());
+
+		/* The inactive block is the first token after the #if directive. */
+		int block = -1;
+		for (int i = 0; i < first.size(); i++) {
+			if (first.get(i).getText().equals("\n\n")) {
+				block = i;
+				break;
+			}
+		}
+		assertTrue(block >= 0, first.toString());
+		assertSame(first.get(block), second.get(block));
+		assertNotSame(uncached.get(block), first.get(block));
+	}
+
+	@Test
+	public void testCompiledDirectives() {
+		MemoryFileSystem fs = fileSystem();
+		fs.addFile("directives.h", DIRECTIVES);
+		IncludeCache cache = new IncludeCache();
+		for (int defines = 0; defines < 8; defines++) {
+			StringBuilder input = new StringBuilder();
+			for (int i = 0; i < 3; i++)
+				if ((defines & (1 << i)) != 0)
+					input.append("#define ").append((char) ('A' + i)).append(' ').append(i).append('\n');
+			input.append("#include \"directives.h\"\n#include \"directives.h\"\n");
+			Consumer<Preprocessor> prepare = pp -> {
+				pp.addWarning(Warning.UNDEF);
+				pp.addFeature(Feature.MACRO_DEPENDENCIES);
+			};
+			assertEquals(preprocess(input.toString(), null, fs, prepare),
+					preprocess(input.toString(), cache, fs, prepare),
+					"defines " + defines);
+		}
+	}
+
+	@Test
+	public void testSharedBetweenPreprocessors() {
+		IncludeCache cache = new IncludeCache();
+		preprocess("#include <b.h>\n", cache);
+		int tokens = cache.getTokenCount();
+		assertTrue(tokens > 0);
+		assertEquals(preprocess("#include \"b.h\"\nb\n", null), preprocess("#include \"b.h\"\nb\n", cache));
+		assertEquals(tokens, cache.getTokenCount());
+	}
+
+	@Test
+	public void testReplaysShareTokens() throws Exception {
+		MemoryFileSystem fs = fileSystem();
+		IncludeCache cache = new IncludeCache();
+		Preprocessor pp = new Preprocessor();
+		try (Source first = cache.getSource(pp, fs.getFile("b.h"));
+				Source second = cache.getSource(pp, fs.getFile("b.h"))) {
+			for (Token tok = first.token();; tok = first.token()) {
+				assertSame(tok, second.token());
+				if (tok.getType() == EOF)
+					break;
+			}
+		}
+		pp.close();
+	}
+
+	@Test
+	public void testLexerDiagnosticsNotCached() {
+		IncludeCache cache = new IncludeCache();
+		String first = preprocess("#include \"d.h\"\n", cache);
+		assertTrue(first.contains("warning d.h"), first);
+		assertEquals(first, preprocess("#include \"d.h\"\n", cache));
+	}
+
+	@Test
+	public void testEviction() {
+		IncludeCache cache = new IncludeCache(10);
+		String input = "#include \"b.h\"\n#include \"c.h\"\n";
+		assertEquals(preprocess(input, null), preprocess(input, cache));
+		assertTrue(cache.getTokenCount() <= 10);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getTokenCount());
+	}
+}
@@ -20,6 +20,8 @@ public class JoinReaderTest {
 		assertEquals(-1, j.read());
 		assertEquals(-1, j.read());
 		j.close();
+
+		assertEquals(out, JoinReader.join(in, tg));
 	}
 
 	private void testJoinReader(String in, String out)
@@ -38,4 +40,39 @@ public class JoinReaderTest {
 		testJoinReader("foo??(bar", "foo[bar", true);
 		testJoinReader("foo??/\nbar", "foobar\n", true);
 	}
+
+	@Test
+	public void testJoinReaderNewlines() throws Exception {
+		testJoinReader("a\\\r\nb\nc", "ab\n\nc");
+		testJoinReader("a\\\rb", "ab\n");
+		testJoinReader("a\\\n\\\nb\r\nc", "ab\r\n\n\nc");
+		testJoinReader("a\\", "a\\");
+		testJoinReader("a\\\\\nb", "a\\b\n");
+		testJoinReader("???=x??", "?#x??", true);
+		testJoinReader("???=x??", "???=x??", false);
+		testJoinReader("a??/\r\nb", "ab\n", true);
+	}
+
+	@Test
+	public void testStringLexerSource() {
+		String input = "#define A(x) \\\n  x \\\r\n + 1\nA(2) ??= /* a\\\nb */ \"s\\\nt\"\n";
+		for (boolean trigraphs : new boolean[] { false, true }) {
+			Preprocessor pp = new Preprocessor();
+			if (trigraphs)
+				pp.addFeature(Feature.TRIGRAPHS);
+			LexerSource a = new LexerSource(new StringReader(input), true);
+			LexerSource b = new LexerSource(input, true);
+			a.init(pp);
+			b.init(pp);
+			while (true) {
+				Token ta = a.token();
+				Token tb = b.token();
+				assertEquals(ta.toString(), tb.toString());
+				assertEquals(a.getLine(), b.getLine());
+				assertEquals(a.getColumn(), b.getColumn());
+				if (ta.getType() == Token.EOF)
+					break;
+			}
+		}
+	}
 }
@@ -1,10 +1,18 @@
 package io.github.douira.glsl_preprocessor;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
 import org.junit.jupiter.api.Test;
 
 import static io.github.douira.glsl_preprocessor.PreprocessorTest.assertType;
 import static io.github.douira.glsl_preprocessor.Token.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class LexerSourceTest {
 //	private static final Logger LOG = LoggerFactory.getLogger(LexerSourceTest.class);
@@ -111,6 +119,30 @@ public class LexerSourceTest {
 		testLexerSource("6e3ull", true, NUMBER);
 	}
 
+	@Test
+	public void testPunctuators() {
+		testLexerSource("<<=<<<>>=>>>&&=&&&||=|||...... .. . ->-- ++##", true,
+				LSH_EQ, LSH, '<', RSH_EQ, RSH, '>', LAND_EQ, LAND, '&',
+				LOR_EQ, LOR, '|', ELLIPSIS, ELLIPSIS, WHITESPACE, RANGE,
+				WHITESPACE, '.', WHITESPACE, ARROW, DEC, WHITESPACE, INC, PASTE);
+		testLexerSource("<: :> <% %> %:%: %:% %", false,
+				'[', WHITESPACE, ']', WHITESPACE, '{', WHITESPACE, '}', WHITESPACE,
+				PASTE, WHITESPACE, '#', '%', WHITESPACE, '%');
+		testLexerSource(".5 x\u00ad\u00e9y", false, NUMBER, WHITESPACE, IDENTIFIER);
+	}
+
+	@Test
+	public void testSharedWhitespace() {
+		LexerSource first = new LexerSource("\t\tx    y \t", true);
+		LexerSource second = new LexerSource("\t\tz    w \t", true);
+		for (int i = 0; i < 5; i++) {
+			Token a = first.token();
+			Token b = second.token();
+			if (a.getType() == WHITESPACE && !a.getText().equals(" \t"))
+				assertSame(a.getText(), b.getText());
+		}
+	}
+
 	@Test
 	public void testNumbersInvalid() {
 		// testLexerSource("0x foo", true, INVALID, WHITESPACE, IDENTIFIER); // FAIL
@@ -126,6 +158,35 @@ public class LexerSourceTest {
 		testLexerSource("5 //", false, NUMBER, WHITESPACE, CPPCOMMENT);
 	}
 
+	@Test
+	public void testInputStreamFailure() {
+		InputStream failing = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("broken");
+			}
+		};
+		UncheckedIOException e = assertThrows(UncheckedIOException.class,
+				() -> new InputLexerSource(failing, StandardCharsets.UTF_8));
+		assertEquals("broken", e.getCause().getMessage());
+	}
+
+	@Test
+	public void testInputStream() {
+		String text = "/* \u00e9\u20ac */ \"\u00fc\" \u00e9x // \ud83d\ude00\n#if 1\n";
+		try (LexerSource expected = new StringLexerSource(text, true);
+				LexerSource actual = new InputLexerSource(
+						new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)),
+						StandardCharsets.UTF_8)) {
+			while (true) {
+				Token tok = expected.token();
+				assertEquals(tok.toString(), actual.token().toString());
+				if (tok.getType() == EOF)
+					break;
+			}
+		}
+	}
+
 	@Test
 	public void testUnicode() {
 		testLexerSource("foo ‘bar’ baz", true, IDENTIFIER, WHITESPACE, 8216, IDENTIFIER, 8217,
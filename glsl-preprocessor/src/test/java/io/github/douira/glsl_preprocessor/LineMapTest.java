@@ -0,0 +1,75 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+
+public class LineMapTest {
+	@Test
+	public void testPositions() {
+		LineMap lines = new LineMap("ab\ncd\r\nef\rg ", null);
+		assertEquals(1, lines.line(0));
+		assertEquals(2, lines.column(2));
+		assertEquals(2, lines.line(3));
+		assertEquals(1, lines.column(4));
+		/* Between CR and LF is the position of the CR. */
+		assertEquals(2, lines.line(6));
+		assertEquals(2, lines.column(6));
+		assertEquals(3, lines.line(7));
+		assertEquals(0, lines.column(7));
+		assertEquals(4, lines.line(10));
+		assertEquals(5, lines.line(12));
+		assertEquals(0, lines.column(12));
+		/* Out of order lookups. */
+		assertEquals(1, lines.line(1));
+		assertEquals(3, lines.line(8));
+	}
+
+	@Test
+	public void testSeek() {
+		LineMap lines = new LineMap("ab\ncd\r\nef", null);
+		lines.seek(6);
+		assertEquals(2, lines.line());
+		assertEquals(2, lines.column());
+		lines.seek(8);
+		assertEquals(3, lines.line());
+		assertEquals(1, lines.column());
+		lines.seek(1);
+		assertEquals(1, lines.line());
+		assertEquals(1, lines.column());
+	}
+
+	@Test
+	public void testScannedPositions() {
+		String text = "a\n\nbc\n";
+		LineMap lines = new LineMap(text, TextScanner.of(text));
+		assertEquals(1, lines.line(1));
+		assertEquals(2, lines.line(2));
+		assertEquals(3, lines.line(4));
+		assertEquals(1, lines.column(4));
+		assertEquals(4, lines.line(7));
+		assertNull(TextScanner.of("a\r\nb"));
+	}
+
+	/* In-memory input must report the positions a Reader reports. */
+	@Test
+	public void testMatchesReader() throws Exception {
+		String text = "#define A \\\r\n 1\r\n\r\n  a /* b\r\n c */ \"d\r\n#if 0\r\n x\n#endif\r\nA?";
+		for (boolean ppvalid : new boolean[] { false, true }) {
+			try (LexerSource memory = new LexerSource(text, ppvalid);
+					LexerSource reader = new LexerSource(new StringReader(text), ppvalid)) {
+				while (true) {
+					Token expected = reader.token();
+					Token actual = memory.token();
+					assertEquals(expected.toString(), actual.toString());
+					assertEquals(reader.getLine(), memory.getLine());
+					assertEquals(reader.getColumn(), memory.getColumn());
+					if (expected.getType() == Token.EOF)
+						break;
+				}
+			}
+		}
+	}
+}
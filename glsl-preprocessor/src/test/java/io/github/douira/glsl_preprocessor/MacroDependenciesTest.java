@@ -0,0 +1,54 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class MacroDependenciesTest {
+	private static final String INPUT = """
+			#define F(x) (x + G)
+			#ifdef A
+			a
+			#elif defined(B) || C
+			b
+			#endif
+			#ifndef D
+			F(E)
+			#endif
+			#if 0
+			#ifdef H
+			#endif
+			I
+			#endif
+			""";
+
+	@Test
+	public void testDependencies() {
+		Preprocessor pp = new Preprocessor(INPUT);
+		pp.addFeature(Feature.MACRO_DEPENDENCIES);
+		pp.printToString();
+		assertEquals(List.of("A", "defined", "B", "C", "D", "F", "E", "G"), List.copyOf(pp.getMacroDependencies()));
+		pp.close();
+	}
+
+	@Test
+	public void testDependenciesDefined() {
+		Preprocessor pp = new Preprocessor(INPUT);
+		pp.addFeature(Feature.MACRO_DEPENDENCIES);
+		pp.addMacro("A");
+		pp.printToString();
+		assertEquals(Set.of("A", "a", "D", "F", "E", "G"), pp.getMacroDependencies());
+		pp.close();
+	}
+
+	@Test
+	public void testDisabled() {
+		Preprocessor pp = new Preprocessor(INPUT);
+		pp.printToString();
+		assertTrue(pp.getMacroDependencies().isEmpty());
+		pp.close();
+	}
+}
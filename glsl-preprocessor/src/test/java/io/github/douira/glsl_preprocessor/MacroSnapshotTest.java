@@ -0,0 +1,57 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.douira.glsl_preprocessor.fs.MemoryFileSystem;
+
+public class MacroSnapshotTest {
+	private static String preprocess(MacroSnapshot snapshot, String input) {
+		Preprocessor pp = new Preprocessor(snapshot);
+		pp.addInput(new StringLexerSource(input, true));
+		String output = pp.printToString();
+		pp.close();
+		return output;
+	}
+
+	@Test
+	public void testSnapshotIsolation() {
+		Preprocessor prelude = new Preprocessor("#define A 1\n#define F(x) (x + A)\n__COUNTER__\n");
+		prelude.printToString();
+		MacroSnapshot snapshot = prelude.snapshot();
+
+		prelude.addMacro("A", "2");
+		prelude.addMacro("P");
+		assertEquals("2", prelude.getMacro("A").getText());
+		assertEquals("1", snapshot.getMacros().get("A").getText());
+		assertNull(snapshot.getMacros().get("P"));
+
+		assertEquals("(1 + 1) 1\n", preprocess(snapshot, "F(1) __COUNTER__\n"));
+		assertEquals("\n\n3\n", preprocess(snapshot, "#undef A\n#define A 3\nA\n"));
+		assertEquals("\nA B\n", preprocess(snapshot, "#undef A\nA B\n"));
+		assertEquals("1 B P\n", preprocess(snapshot, "A B P\n"));
+
+		prelude.addInput(new StringLexerSource("A P\n", true));
+		assertEquals("2 1\n", prelude.printToString());
+		prelude.close();
+	}
+
+	@Test
+	public void testSnapshotIncludeOnce() {
+		MemoryFileSystem fs = new MemoryFileSystem();
+		fs.addFile("once.h", "#pragma once\nonce\n");
+		Preprocessor prelude = new Preprocessor("#include \"once.h\"\n");
+		prelude.setFileSystem(fs);
+		prelude.addFeature(Feature.PRAGMA_ONCE);
+		prelude.printToString();
+		MacroSnapshot snapshot = prelude.snapshot();
+
+		Preprocessor pp = new Preprocessor(snapshot);
+		pp.setFileSystem(fs);
+		pp.addFeature(Feature.PRAGMA_ONCE);
+		pp.addInput(new StringLexerSource("#include \"once.h\"\nmain\n", true));
+		assertFalse(pp.printToString().contains("once"));
+		pp.close();
+	}
+}
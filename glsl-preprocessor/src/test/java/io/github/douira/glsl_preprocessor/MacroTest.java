@@ -0,0 +1,92 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+public class MacroTest {
+	@Test
+	public void testBuilder() {
+		List<String> args = new ArrayList<>(List.of("a", "b"));
+		Macro.Builder builder = new Macro.Builder("F")
+				.setArgs(args)
+				.addToken(new Token(Token.M_ARG, -1, -1, "a", 0))
+				.addPaste(new Token(Token.M_PASTE, -1, -1, "##", null))
+				.addToken(new Token(Token.M_ARG, -1, -1, "b", 1));
+		Macro first = builder.build();
+		assertEquals("F(a, b) => a ## b", first.toString());
+
+		args.add("c");
+		builder.setVariadic(true).addToken(new Token(Token.IDENTIFIER, -1, -1, "x"));
+		Macro second = builder.build();
+		assertEquals(2, first.getArgs());
+		assertFalse(first.isVariadic());
+		assertEquals("F(a, b) => a ## b", first.toString());
+		assertEquals("F(a, b, c...) => a ## bx", second.toString());
+	}
+
+	@Test
+	public void testSharedDefinition() {
+		Preprocessor parsed = new Preprocessor("#define SQ(x) ((x) * (x))\n");
+		parsed.printToString();
+		Macro square = parsed.getMacro("SQ");
+
+		List<CompletableFuture<String>> futures = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			int n = i;
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				Preprocessor pp = new Preprocessor("SQ(" + n + ")\n");
+				pp.addMacro(square);
+				return pp.printToString();
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++)
+			assertEquals("((" + i + ") * (" + i + "))\n", futures.get(i).join());
+	}
+
+	private static String preprocess(String input) {
+		Preprocessor pp = new Preprocessor(input);
+		String output = pp.printToString();
+		pp.close();
+		return output;
+	}
+
+	@Test
+	public void testArgumentExpansion() {
+		assertEquals("\n\n1 + 2\n", preprocess("#define F(x) x\n#define G(a, b) F(a) + b\nG(F(F(1)), F(2))\n"));
+		assertEquals("\n\n1 G G\n", preprocess("#define F(a) a\n#define G(a) F(a) F(G)\nG(G(1))\n"));
+		assertEquals("\n\n\n\"x\" \"1\" 1\n",
+				preprocess("#define F(x) x\n#define S(x) #x\n#define T(x, y) #y S(x) x\nT(F(1), x)\n"));
+		assertEquals("\n\nAB 1\n", preprocess("#define A 1\n#define P(a, b) a ## b a\nP(A, B)\n"));
+	}
+
+	@Test
+	public void testArgumentExpansionOrder() {
+		/* Arguments are expanded when they are first used, like GCC does. */
+		assertEquals("\n0 1 1 2\n", preprocess("#define F(a, b) b a\nF(__COUNTER__, __COUNTER__) F(__LINE__, 1)\n"));
+		assertEquals("\n\n1\n", preprocess("#define G(x) x\n#define U(a) 1\nU(G(1, 2))\n"));
+	}
+
+	@Test
+	public void testSingleTokenMacros() {
+		String input = "#define A 1.0\n#define B\n#define C C\n#define D A\n#define F() A\n#define G(x) x\n"
+				+ "A B C D F() G(A)\n#if A && !defined(B) + D\n#else\nB\n#endif\n";
+		Preprocessor pp = new Preprocessor(input);
+		List<String> events = new ArrayList<>();
+		pp.setListener(new DefaultPreprocessorListener() {
+			@Override
+			public void handleSourceChange(Source source, SourceChangeEvent event) {
+				if (event == SourceChangeEvent.PUSH)
+					events.add(source.toString());
+			}
+		});
+		assertEquals("\n\n\n\n\n\n1.0  C 1.0 1.0 1.0\n\n\n\n\n", pp.printToString());
+		/* The input, C, D, F (twice for D) and G with its argument, but not A and B. */
+		assertEquals(7, events.size(), events.toString());
+		pp.close();
+	}
+}
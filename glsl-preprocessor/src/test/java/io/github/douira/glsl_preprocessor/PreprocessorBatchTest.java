@@ -0,0 +1,124 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.douira.glsl_preprocessor.fs.MemoryFileSystem;
+import io.github.douira.glsl_preprocessor.fs.StringFile;
+
+public class PreprocessorBatchTest {
+	private static MemoryFileSystem fileSystem() {
+		MemoryFileSystem fs = new MemoryFileSystem();
+		fs.addFile("lib.h", "#pragma once\nvec3 lib(vec3 x) { return x * SCALE; }\n");
+		return fs;
+	}
+
+	private static List<PreprocessorBatch.Job> jobs() {
+		List<PreprocessorBatch.Job> jobs = new ArrayList<>();
+		for (int i = 0; i < 64; i++) {
+			String content = "#include \"lib.h\"\n#define ID " + i + "\nint id = ID;\n";
+			if (i % 7 == 0)
+				content += "#error job " + i + "\n";
+			jobs.add(new PreprocessorBatch.Job("job" + i, content));
+		}
+		return jobs;
+	}
+
+	private static String expected(PreprocessorBatch.Job job, MacroSnapshot base) {
+		Preprocessor pp = new Preprocessor(base);
+		pp.setFileSystem(fileSystem());
+		pp.addFeature(Feature.PRAGMA_ONCE);
+		pp.setListener(new DefaultPreprocessorListener());
+		pp.addInput(new StringLexerSource(job.content(), job.name(), true));
+		String output = pp.printToString();
+		pp.close();
+		return output;
+	}
+
+	@Test
+	public void testBatch() {
+		Preprocessor prelude = new Preprocessor("#define SCALE 2.0\n");
+		prelude.printToString();
+		MacroSnapshot base = prelude.snapshot();
+
+		PreprocessorBatch batch = new PreprocessorBatch(fileSystem(), base);
+		batch.addFeature(Feature.PRAGMA_ONCE);
+		batch.setIncludeCache(new IncludeCache());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		batch.setExecutor(executor);
+		List<PreprocessorBatch.Job> jobs = jobs();
+		List<PreprocessorBatch.Result> results;
+		try {
+			results = batch.run(jobs);
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(jobs.size(), results.size());
+		for (int i = 0; i < jobs.size(); i++) {
+			PreprocessorBatch.Result result = results.get(i);
+			assertSame(jobs.get(i), result.job());
+			assertEquals(expected(jobs.get(i), base), result.output());
+			assertTrue(result.output().contains("x * 2.0"));
+			assertEquals(List.of("lib.h"), result.includes());
+			if (i % 7 == 0) {
+				assertTrue(result.hasErrors());
+				assertEquals(1, result.diagnostics().size());
+				assertEquals("job" + i, result.diagnostics().get(0).source());
+			} else {
+				assertTrue(result.diagnostics().isEmpty());
+			}
+		}
+		assertNull(base.getMacros().get("ID"));
+	}
+
+	@Test
+	public void testResultCache() {
+		PreprocessorBatch batch = new PreprocessorBatch(fileSystem());
+		batch.addFeature(Feature.PRAGMA_ONCE);
+		PreprocessorResultCache cache = new PreprocessorResultCache();
+		batch.setResultCache(cache);
+		List<PreprocessorBatch.Job> jobs = jobs();
+		List<PreprocessorBatch.Result> first = batch.run(jobs);
+		List<PreprocessorBatch.Result> second = batch.run(jobs);
+		for (int i = 0; i < jobs.size(); i++) {
+			assertEquals(first.get(i).output(), second.get(i).output());
+			assertEquals(first.get(i).diagnostics().size(), second.get(i).diagnostics().size());
+		}
+		assertEquals(jobs.size() - 10, cache.getHitCount());
+	}
+
+	@Test
+	public void testFailedJob() {
+		MemoryFileSystem fs = fileSystem();
+		fs.addFile("broken.h", new StringFile("broken.h", "") {
+			@Override
+			public Source getSource() {
+				throw new RuntimeException(new IOException("File not readable: broken.h"));
+			}
+		});
+		PreprocessorBatch batch = new PreprocessorBatch(fs);
+		List<PreprocessorBatch.Job> jobs = new ArrayList<>(jobs());
+		jobs.add(3, new PreprocessorBatch.Job("broken", "#include \"broken.h\"\n"));
+		List<PreprocessorBatch.Result> results = batch.run(jobs);
+
+		assertEquals(jobs.size(), results.size());
+		PreprocessorBatch.Result broken = results.get(3);
+		assertTrue(broken.hasErrors());
+		assertInstanceOf(IOException.class, broken.failure().getCause());
+		assertEquals("", broken.output());
+		for (int i = 0; i < results.size(); i++) {
+			if (i != 3) {
+				assertNull(results.get(i).failure());
+				assertTrue(results.get(i).output().contains("int id"));
+			}
+		}
+	}
+}
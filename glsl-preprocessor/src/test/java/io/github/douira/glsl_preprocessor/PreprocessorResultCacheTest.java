@@ -0,0 +1,191 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.github.douira.glsl_preprocessor.fs.MemoryFileSystem;
+import io.github.douira.glsl_preprocessor.fs.VirtualFile;
+
+public class PreprocessorResultCacheTest {
+	private static final String PROGRAM = """
+			#include "lib.h"
+			#ifdef SHADOWS
+			shadow(QUALITY);
+			#endif
+			#define LOCAL 1
+			main(LOCAL);
+			""";
+
+	private static PreprocessorResultCache.Result preprocess(PreprocessorResultCache cache,
+			MemoryFileSystem fs, Map<String, String> defines) {
+		Preprocessor pp = new Preprocessor();
+		pp.setFileSystem(fs);
+		pp.setListener(new DefaultPreprocessorListener());
+		for (Map.Entry<String, String> define : defines.entrySet())
+			pp.addMacro(define.getKey(), define.getValue());
+		return cache.preprocess(pp, "main.glsl", PROGRAM);
+	}
+
+	private static MemoryFileSystem fileSystem(String lib) {
+		MemoryFileSystem fs = new MemoryFileSystem();
+		fs.addFile("lib.h", lib);
+		return fs;
+	}
+
+	@Test
+	public void testUnrelatedDefines() {
+		PreprocessorResultCache cache = new PreprocessorResultCache();
+		MemoryFileSystem fs = fileSystem("float lib;\n");
+		PreprocessorResultCache.Result first = preprocess(cache, fs, Map.of("OTHER", "1"));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(List.of("lib.h"), first.includes());
+		assertTrue(first.macroDependencies().contains("SHADOWS"));
+		assertFalse(first.macroDependencies().contains("OTHER"));
+
+		assertSame(first, preprocess(cache, fs, Map.of("OTHER", "2", "QUALITY", "3")));
+		assertSame(first, preprocess(cache, fs, Map.of()));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testRelevantDefines() {
+		PreprocessorResultCache cache = new PreprocessorResultCache();
+		MemoryFileSystem fs = fileSystem("float lib;\n");
+		String plain = preprocess(cache, fs, Map.of()).output();
+		String low = preprocess(cache, fs, Map.of("SHADOWS", "1", "QUALITY", "1")).output();
+		String high = preprocess(cache, fs, Map.of("SHADOWS", "1", "QUALITY", "2")).output();
+		assertFalse(plain.contains("shadow"));
+		assertTrue(low.contains("shadow(1)"));
+		assertTrue(high.contains("shadow(2)"));
+		assertEquals(3, cache.getMissCount());
+		assertEquals(3, cache.size());
+
+		assertEquals(low, preprocess(cache, fs, Map.of("SHADOWS", "1", "QUALITY", "1", "OTHER", "")).output());
+		assertEquals(1, cache.getHitCount());
+		/* A macro defined by the program itself must not be defined before it. */
+		preprocess(cache, fs, Map.of("LOCAL", "2"));
+		assertEquals(4, cache.getMissCount());
+	}
+
+	@Test
+	public void testChangedInclude() {
+		PreprocessorResultCache cache = new PreprocessorResultCache();
+		preprocess(cache, fileSystem("float lib;\n"), Map.of());
+		String output = preprocess(cache, fileSystem("float changed;\n"), Map.of()).output();
+		assertTrue(output.contains("changed"));
+		assertEquals(2, cache.getMissCount());
+		assertEquals(0, cache.getHitCount());
+	}
+
+	@Test
+	public void testDiagnosticsNotCached() {
+		PreprocessorResultCache cache = new PreprocessorResultCache();
+		MemoryFileSystem fs = fileSystem("#warning lib\n");
+		for (int i = 0; i < 2; i++) {
+			Preprocessor pp = new Preprocessor();
+			pp.setFileSystem(fs);
+			int[] warnings = { 0 };
+			pp.setListener(new DefaultPreprocessorListener() {
+				@Override
+				public void handleWarning(@NonNull Source source, int line, int column, @NonNull String msg) {
+					warnings[0]++;
+				}
+			});
+			cache.preprocess(pp, "main.glsl", PROGRAM);
+			assertEquals(1, warnings[0]);
+		}
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testCharCount() {
+		PreprocessorResultCache cache = new PreprocessorResultCache();
+		MemoryFileSystem fs = fileSystem("float lib;\n");
+		String plain = preprocess(cache, fs, Map.of()).output();
+		/* The source, the output and the digest of the one include. */
+		assertEquals(PROGRAM.length() + plain.length() + 16, cache.getCharCount());
+		String shadows = preprocess(cache, fs, Map.of("SHADOWS", "1")).output();
+		assertEquals(PROGRAM.length() + plain.length() + shadows.length() + 32, cache.getCharCount());
+	}
+
+	@Test
+	public void testEviction() {
+		PreprocessorResultCache cache = new PreprocessorResultCache(40);
+		MemoryFileSystem fs = fileSystem("float lib;\n");
+		preprocess(cache, fs, Map.of());
+		preprocess(cache, fs, Map.of("SHADOWS", "1", "QUALITY", "1"));
+		assertTrue(cache.getCharCount() <= 40);
+		assertTrue(cache.getEvictionCount() > 0);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getCharCount());
+	}
+
+	@Test
+	public void testPragmaOnceSnapshot() {
+		PreprocessorResultCache cache = new PreprocessorResultCache();
+		MemoryFileSystem fs = new MemoryFileSystem();
+		fs.addFile("a.h", "#pragma once\nbody_of_a\n");
+		Preprocessor prelude = new Preprocessor();
+		prelude.addFeature(Feature.PRAGMA_ONCE);
+		prelude.setFileSystem(fs);
+		prelude.addInput(new StringLexerSource("#include \"a.h\"\n", "prelude.glsl", true));
+		prelude.printToString();
+		MacroSnapshot snapshot = prelude.snapshot();
+
+		assertFalse(preprocessOnce(cache, fs, new Preprocessor(snapshot)).contains("body_of_a"));
+		assertTrue(preprocessOnce(cache, fs, new Preprocessor()).contains("body_of_a"));
+		assertEquals(2, cache.getMissCount());
+		assertFalse(preprocessOnce(cache, fs, new Preprocessor(snapshot)).contains("body_of_a"));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	private static String preprocessOnce(PreprocessorResultCache cache, MemoryFileSystem fs, Preprocessor pp) {
+		pp.addFeature(Feature.PRAGMA_ONCE);
+		pp.setFileSystem(fs);
+		pp.setListener(new DefaultPreprocessorListener());
+		return cache.preprocess(pp, "main.glsl", "#include \"a.h\"\nmain\n").output();
+	}
+
+	@Test
+	public void testIncludeResolution() {
+		PreprocessorResultCache cache = new PreprocessorResultCache();
+		MemoryFileSystem fs = new MemoryFileSystem() {
+			@NonNull
+			@Override
+			public VirtualFile getFile(@CheckForNull Source parent, @NonNull String path, boolean quoted, boolean next) {
+				if (quoted && parent != null && "shaders/main.glsl".equals(parent.getName())) {
+					try {
+						return getFile("shaders/" + path);
+					} catch (RuntimeException e) {
+						/* Not next to the including file. */
+					}
+				}
+				return getFile(path);
+			}
+		};
+		fs.addFile("lib.h", "float lib;\n");
+		String first = preprocessIn(cache, fs);
+		assertTrue(first.contains("float lib;"), first);
+		fs.addFile("shaders/lib.h", "float sibling;\n");
+		String second = preprocessIn(cache, fs);
+		assertTrue(second.contains("float sibling;"), second);
+		assertEquals(0, cache.getHitCount());
+		assertEquals(second, preprocessIn(cache, fs));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	private static String preprocessIn(PreprocessorResultCache cache, MemoryFileSystem fs) {
+		Preprocessor pp = new Preprocessor();
+		pp.setFileSystem(fs);
+		pp.setListener(new DefaultPreprocessorListener());
+		return cache.preprocess(pp, "shaders/main.glsl", PROGRAM).output();
+	}
+}
@@ -0,0 +1,76 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+public class SkipInactiveTest {
+	private static void testSkip(String input, String output, String... warnings) {
+		Preprocessor pp = new Preprocessor(input);
+		List<String> messages = new ArrayList<>();
+		pp.setListener(new DefaultPreprocessorListener() {
+			@Override
+			public void handleWarning(@NonNull Source source, int line, int column, @NonNull String msg) {
+				messages.add(line + ":" + column + " " + msg);
+			}
+
+			@Override
+			public void handleError(@NonNull Source source, int line, int column, @NonNull String msg) {
+				messages.add(line + ":" + column + " " + msg);
+			}
+		});
+		assertEquals(output, pp.printToString());
+		assertEquals(List.of(warnings), messages);
+		pp.close();
+	}
+
+	@Test
+	public void testSkippedText() {
+		testSkip("#if 0\n\tfoo /* x\ny */ bar\n  /*c\nd*/ baz\n\n\n#endif\nend\n",
+				"\n\t\n  \n \n\n\n\nend\n");
+		testSkip("#ifdef X\n  \"str /* \\\" \" /* a\nb */ x\n'/*' y\n// c\n  #  else\nz\n#endif\n",
+				"\n  \n\n\n  \nz\n\n");
+		testSkip("#if 0\na \\\nb\n#define X 1 \\\n 2\n#endif\nX\n",
+				"\n\n\n\n\n\nX\n");
+		testSkip("#if 0\n#if 1\nq\n#elif 1\nr\n#else\ns\n#endif\n#elif 1\nt /* u\nv */ w\n#endif\n",
+				"\n\n\n\n\n\n\n\n\nt   w\n\n");
+		testSkip("#if 0\n /* c */ \u000B x #y\n#endif\n",
+				"\n  \u000B \n\n");
+	}
+
+	@Test
+	public void testSkippedLineSeparators() {
+		testSkip("#if 0\r\nfoo\r\n\r\n  // c\r\n/* \r\n */#x\r\n  #endif\r\n",
+				"\n\n\r\n  \r\n\n\n  \n",
+				"6:4 Unknown preprocessor directive x");
+	}
+
+	@Test
+	public void testSkippedEndOfFile() {
+		testSkip("#if 0\nfoo # bar\n  /* unterminated\n",
+				"\n\n  \n",
+				"4:0 No newline before end of file");
+		testSkip("#if 0\nfoo \"abc",
+				"\n\n",
+				"2:8 No newline before end of file");
+	}
+
+	@Test
+	public void testSingleToken() {
+		Preprocessor pp = new Preprocessor("#if 0\na\n  b /* c\n */\n\n#endif\n");
+		assertEquals(Token.NL, pp.token().getType());
+		Token skipped = pp.token();
+		assertEquals(Token.WHITESPACE, skipped.getType());
+		assertEquals("\n  \n\n", skipped.getText());
+		assertEquals(2, skipped.getLine());
+		assertEquals(0, skipped.getColumn());
+		assertEquals(Token.NL, pp.token().getType());
+		assertEquals(Token.EOF, pp.token().getType());
+		pp.close();
+	}
+}
@@ -0,0 +1,117 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.Test;
+
+public class SymbolTableTest {
+	@Test
+	public void testIntern() {
+		char[] buf = "xx symbol_table_test yy".toCharArray();
+		Symbol a = SymbolTable.intern(buf, 3, 17);
+		Symbol b = SymbolTable.intern("symbol_table_test");
+		assertSame(a, b);
+		assertEquals("symbol_table_test", a.getText());
+		assertEquals("symbol_table_test".hashCode(), a.getHash());
+		assertSame(a, SymbolTable.lookup("symbol_table_test"));
+		assertNull(SymbolTable.lookup("symbol_table_test_missing"));
+	}
+
+	@Test
+	public void testConcurrentIntern() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Symbol[]>> results = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				results.add(executor.submit(() -> {
+					Symbol[] symbols = new Symbol[5000];
+					for (int i = 0; i < symbols.length; i++)
+						symbols[i] = SymbolTable.intern(("concurrent_" + i).toCharArray(), 0,
+								("concurrent_" + i).length());
+					return symbols;
+				}));
+			}
+			Symbol[] first = results.get(0).get();
+			for (Future<Symbol[]> result : results)
+				assertArrayEquals(first, result.get());
+			Set<Integer> ids = new HashSet<>();
+			for (Symbol symbol : first)
+				assertTrue(ids.add(symbol.getId()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testIdentifierTokens() {
+		LexerSource lexer = new LexerSource("foo bar foo", false);
+		Token foo = lexer.token();
+		lexer.token();
+		Token bar = lexer.token();
+		lexer.token();
+		Token foo2 = lexer.token();
+		assertSame(foo.getSymbol(), foo2.getSymbol());
+		assertSame(foo.getText(), foo2.getText());
+		assertNotSame(foo.getSymbol(), bar.getSymbol());
+		assertNull(foo.getValue());
+	}
+
+	@Test
+	public void testMacroMap() {
+		Preprocessor pp = new Preprocessor("A B C\n");
+		pp.addMacro("A", "a");
+		Map<String, Macro> macros = pp.getMacros();
+		assertEquals(4, macros.size());
+		assertTrue(macros.containsKey("A"));
+		assertFalse(macros.containsKey("B"));
+		macros.put("B", new Macro("B"));
+		assertThrows(IllegalArgumentException.class, () -> macros.put("C", new Macro("D")));
+		assertNotNull(macros.remove("A"));
+		assertNull(pp.getMacro("A"));
+		Set<String> names = new TreeSet<>();
+		for (Map.Entry<String, Macro> entry : macros.entrySet())
+			names.add(entry.getKey());
+		assertEquals(Set.of("B", "__LINE__", "__FILE__", "__COUNTER__"), names);
+		assertEquals("A  C\n", pp.printToString());
+		pp.close();
+	}
+
+	@Test
+	public void testSymbolMap() {
+		SymbolMap<Integer> map = new SymbolMap<>();
+		Map<Symbol, Integer> expected = new HashMap<>();
+		Random random = new Random(5);
+		for (int i = 0; i < 20000; i++) {
+			Symbol symbol = SymbolTable.intern("symbol_map_" + random.nextInt(500));
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(symbol), map.remove(symbol));
+			} else {
+				assertEquals(expected.put(symbol, i), map.put(symbol, i));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (int i = 0; i < 500; i++) {
+			Symbol symbol = SymbolTable.intern("symbol_map_" + i);
+			assertEquals(expected.get(symbol), map.get(symbol));
+		}
+		assertTrue(map.capacity() <= 2048);
+	}
+
+	@Test
+	public void testMacroMapIteratorRemove() {
+		Preprocessor pp = new Preprocessor();
+		pp.addMacro("NEW_OPTION", "1");
+		Map<String, Macro> macros = pp.getMacros();
+		for (int i = 0; i < 100; i++)
+			pp.addMacro("REMOVED_" + i, "1");
+		for (Iterator<Map.Entry<String, Macro>> it = macros.entrySet().iterator(); it.hasNext();)
+			if (it.next().getKey().startsWith("REMOVED_"))
+				it.remove();
+		assertEquals(4, macros.size());
+		assertNotNull(pp.getMacro("NEW_OPTION"));
+		pp.close();
+	}
+}
@@ -0,0 +1,44 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenPasterTest {
+	private static List<String> describe(List<Token> tokens) {
+		List<String> result = new ArrayList<>();
+		for (Token tok : tokens)
+			result.add(tok + "@" + tok.getLine() + ":" + tok.getColumn());
+		return result;
+	}
+
+	private static List<Token> lex(String text) {
+		List<Token> tokens = new ArrayList<>();
+		for (Iterator<Token> it = new SourceIterator(new StringLexerSource(text)); it.hasNext();)
+			tokens.add(it.next());
+		return tokens;
+	}
+
+	@Test
+	public void testMatchesLexer() {
+		TokenPaster paster = new TokenPaster();
+		for (String text : new String[] { "vec3", "a_b", "x$", "+=", "<<=", "##", "...", "->", "#", "12",
+				"1.5e3", "0x1F", "a+", "+a", ".5", "1a", "'a'", "\"s\"", "a\u200Bb", "/", "//", "/**/", "\"open" }) {
+			List<String> expected = describe(lex(text));
+			assertEquals(expected, describe(paster.paste(text)), text);
+			assertEquals(expected, describe(paster.paste(text)), text);
+		}
+	}
+
+	@Test
+	public void testCached() {
+		TokenPaster paster = new TokenPaster();
+		assertSame(paster.paste("1.5f"), paster.paste("1.5f"));
+		assertSame(paster.paste("+="), new TokenPaster().paste("+="));
+		assertEquals(SymbolTable.intern("vec3"), paster.paste("vec3").get(0).getSymbol());
+	}
+}
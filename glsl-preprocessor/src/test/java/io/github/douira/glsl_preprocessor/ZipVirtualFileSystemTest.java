@@ -0,0 +1,78 @@
+package io.github.douira.glsl_preprocessor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.douira.glsl_preprocessor.fs.*;
+
+public class ZipVirtualFileSystemTest {
+	@TempDir
+	Path root;
+
+	private Path zip(String... entries) throws Exception {
+		Path file = root.resolve("pack.zip");
+		try (OutputStream out = Files.newOutputStream(file);
+				ZipOutputStream zip = new ZipOutputStream(out)) {
+			zip.putNextEntry(new ZipEntry("shaders/"));
+			zip.closeEntry();
+			for (int i = 0; i < entries.length; i += 2) {
+				zip.putNextEntry(new ZipEntry(entries[i]));
+				zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+				zip.closeEntry();
+			}
+		}
+		return file;
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		Path file = zip("a", "aaaa", "b", "bbbb", "c", "cccc");
+		try (ZipVirtualFileSystem fs = new ZipVirtualFileSystem(file, StandardCharsets.UTF_8, 10)) {
+			assertEquals(0, fs.getCharCount());
+			assertEquals("aaaa", fs.getFile("a").getContent());
+			assertEquals("bbbb", fs.getFile("b").getContent());
+			assertEquals(8, fs.getCharCount());
+			assertEquals("cccc", fs.getFile("c").getContent());
+			assertEquals(8, fs.getCharCount());
+			assertEquals("cccc", fs.getFile("/c").getContent());
+			fs.clear();
+			assertEquals(0, fs.getCharCount());
+		}
+		try (ZipVirtualFileSystem fs = new ZipVirtualFileSystem(file, StandardCharsets.UTF_8, 0)) {
+			assertEquals("aaaa", fs.getFile("a").getContent());
+			assertEquals(0, fs.getCharCount());
+		}
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		List<String> entries = new ArrayList<>();
+		for (int i = 0; i < 32; i++) {
+			entries.add("shaders/" + i + ".glsl");
+			entries.add("int x" + i + ";\n");
+		}
+		Path file = zip(entries.toArray(new String[0]));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (ZipVirtualFileSystem fs = new ZipVirtualFileSystem(file, StandardCharsets.UTF_8, 64)) {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 256; i++) {
+				int n = i % 32;
+				results.add(executor.submit(() -> fs.getFile("shaders/" + n + ".glsl").getContent()));
+			}
+			for (int i = 0; i < results.size(); i++)
+				assertEquals("int x" + (i % 32) + ";\n", results.get(i).get());
+			assertTrue(fs.getCharCount() <= 64);
+		} finally {
+			executor.shutdown();
+		}
+	}
+}